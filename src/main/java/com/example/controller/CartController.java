@@ -2,6 +2,14 @@ package com.example.controller;
 
 import com.example.model.Cart;
 import com.example.model.Product;
+import com.example.repository.Page;
+import com.example.repository.VersionConflictException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
 import com.example.service.CartService;
@@ -17,11 +25,13 @@ import java.util.UUID;
 public class CartController {
     //The Dependency Injection Variables
     private CartService cartService;
+    private ObjectMapper objectMapper;
 
 
 //The Constructor with the requried variables mapping the Dependency Injection.
-    public CartController(CartService cartService) {
+    public CartController(CartService cartService, ObjectMapper objectMapper) {
         this.cartService = cartService;
+        this.objectMapper = objectMapper;
     }
 
     @PostMapping("/")
@@ -34,14 +44,32 @@ public class CartController {
         return cartService.getCarts();
     }
 
+    // The same listing as application/x-ndjson, streamed page by page; for exports.
+    @GetMapping(value = "/", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> exportCarts(){
+        return NdJson.stream(objectMapper, cartService::getCartPage);
+    }
+
+    // Keyset paging: GET /cart/?limit=50, then after=<nextCursor of the previous page>.
+    @GetMapping(value = "/", params = "limit")
+    public Page<Cart> getCartPage(@RequestParam(required = false) UUID after, @RequestParam int limit){
+        return cartService.getCartPage(after, limit);
+    }
+
     @GetMapping("/{cartId}")
     public Cart getCartById(@PathVariable UUID cartId){
         return cartService.getCartById(cartId);
     }
 
+    // If-Match: "<version>" makes the add fail with 412 when the cart changed since it was read.
     @PutMapping("/addProduct/{cartId}")
-    public String addProductToCart(@PathVariable UUID cartId, @RequestBody Product product){
-        cartService.addProductToCart(cartId, product);
+    public String addProductToCart(@PathVariable UUID cartId, @RequestBody Product product,
+                                   @RequestHeader(value = "If-Match", required = false) String ifMatch){
+        try {
+            cartService.addProductToCart(cartId, product, IfMatch.parse(ifMatch));
+        } catch (VersionConflictException e) {
+            throw new ResponseStatusException(HttpStatus.PRECONDITION_FAILED, e.getMessage());
+        }
         return "Product added to cart";
     }
 
@@ -0,0 +1,44 @@
+package com.example.controller;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+
+/** Reads the entity version a client expects from an If-Match header: "3", W/"3" or 3. */
+final class IfMatch {
+
+    private IfMatch() {
+    }
+
+    /** Null when there is no header or it is "*", i.e. any version will do. */
+    static Long parse(String header) {
+        if (header == null || header.isBlank() || header.trim().equals("*")) {
+            return null;
+        }
+        String tag = header.trim();
+        if (tag.startsWith("W/")) {
+            tag = tag.substring(2);
+        }
+        tag = tag.replace("\"", "");
+        try {
+            return Long.parseLong(tag);
+        } catch (NumberFormatException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "If-Match must be an entity version");
+        }
+    }
+
+    /**
+     * Like {@link #parse(String)}, also taking "&lt;epoch&gt;-&lt;version&gt;" ETags. One from
+     * another epoch fails with 412: its version may name other contents in this one.
+     */
+    static Long parse(String header, String epoch) {
+        String tag = header == null ? "" : header.trim().replace("W/", "").replace("\"", "");
+        int dash = tag.lastIndexOf('-');
+        if (dash < 0) {
+            return parse(header);
+        }
+        if (!tag.substring(0, dash).equals(epoch)) {
+            throw new ResponseStatusException(HttpStatus.PRECONDITION_FAILED, "If-Match is from before a restart");
+        }
+        return parse(tag.substring(dash + 1));
+    }
+}
@@ -0,0 +1,43 @@
+package com.example.controller;
+
+import java.io.OutputStream;
+import java.util.UUID;
+import java.util.function.BiFunction;
+
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import com.example.repository.Page;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+/**
+ * Writes a whole collection as application/x-ndjson, one entity per line. The entities are
+ * fetched a keyset page at a time and each page is flushed before the next is read, so an export
+ * holds one page in memory however large the collection is.
+ */
+final class NdJson {
+
+    private static final int PAGE_SIZE = 500;
+
+    private NdJson() {
+    }
+
+    static <T> ResponseEntity<StreamingResponseBody> stream(ObjectMapper objectMapper, BiFunction<UUID, Integer, Page<T>> pages) {
+        ObjectWriter writer = objectMapper.writer();
+        StreamingResponseBody body = (OutputStream out) -> {
+            UUID cursor = null;
+            do {
+                Page<T> page = pages.apply(cursor, PAGE_SIZE);
+                for (T entity : page.items()) {
+                    out.write(writer.writeValueAsBytes(entity));
+                    out.write('\n');
+                }
+                out.flush();
+                cursor = page.nextCursor();
+            } while (cursor != null);
+        };
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_NDJSON).body(body);
+    }
+}
@@ -2,12 +2,19 @@ package com.example.controller;
 
 import com.example.model.Order;
 import com.example.model.User;
+import com.example.repository.Page;
+import com.example.repository.TimeBucket;
 import com.example.service.CartService;
 import com.example.service.OrderService;
 import com.example.service.ProductService;
 import com.example.service.UserService;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 import org.springframework.web.bind.annotation.*;
 
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
@@ -16,9 +23,11 @@ import java.util.UUID;
 public class OrderController {
     //The Dependency Injection Variables
     private OrderService orderService;
+    private ObjectMapper objectMapper;
     //The Constructor with the requried variables mapping the Dependency Injection.
-    public OrderController(OrderService orderService) {
+    public OrderController(OrderService orderService, ObjectMapper objectMapper) {
         this.orderService = orderService;
+        this.objectMapper = objectMapper;
     }
 
     @PostMapping("/")
@@ -26,6 +35,13 @@ public class OrderController {
         orderService.addOrder(order);
     }
 
+    // Orders and revenue per bucket, e.g. ?from=2025-03-01T00:00:00Z&to=2025-03-02T00:00:00Z&granularity=hour
+    @GetMapping("/stats")
+    public List<TimeBucket> getOrderStats(@RequestParam Instant from, @RequestParam Instant to,
+                                          @RequestParam(defaultValue = "day") String granularity){
+        return orderService.getOrderStats(from, to, granularity);
+    }
+
     @GetMapping("/{orderId}")
     public Order getOrderById(@PathVariable UUID orderId){
         return orderService.getOrderById(orderId);
@@ -36,6 +52,18 @@ public class OrderController {
         return orderService.getOrders();
     }
 
+    // The same listing as application/x-ndjson, streamed page by page; for exports.
+    @GetMapping(value = "/", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> exportOrders(){
+        return NdJson.stream(objectMapper, orderService::getOrderPage);
+    }
+
+    // Keyset paging: GET /order/?limit=50, then after=<nextCursor of the previous page>.
+    @GetMapping(value = "/", params = "limit")
+    public Page<Order> getOrderPage(@RequestParam(required = false) UUID after, @RequestParam int limit){
+        return orderService.getOrderPage(after, limit);
+    }
+
     @DeleteMapping("/delete/{orderId}")
     public String deleteOrderById(@PathVariable UUID orderId){
         try{
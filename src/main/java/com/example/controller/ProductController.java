@@ -1,11 +1,21 @@
 package com.example.controller;
 
 import com.example.model.Product;
+import com.example.repository.Page;
+import com.example.repository.VersionConflictException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import com.example.service.ProductService;
 
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 
@@ -14,10 +24,12 @@ import java.util.UUID;
 public class ProductController {
     //The Dependency Injection Variables
     private ProductService productService;
+    private ObjectMapper objectMapper;
 
     //The Constructor with the requried variables mapping the Dependency Injection.
-    public ProductController(ProductService productService) {
+    public ProductController(ProductService productService, ObjectMapper objectMapper) {
         this.productService = productService;
+        this.objectMapper = objectMapper;
     }
 
     @PostMapping("/")
@@ -25,18 +37,79 @@ public class ProductController {
         return productService.addProduct(product);
     }
 
+    @PostMapping("/batch")
+    public List<Product> addProducts(@RequestBody ArrayList<Product> products){
+        return productService.addProducts(products);
+    }
+
+    // Clients that send back the ETag in If-None-Match get a 304 until the catalog changes;
+    // the JSON itself is rendered once per change.
     @GetMapping("/")
-    public ArrayList<Product> getProducts(){
-        return productService.getProducts();
+    public ResponseEntity<byte[]> getProducts(WebRequest request){
+        if (request.checkNotModified(eTag(productService.getCatalogVersion()))) {
+            return null;
+        }
+        ProductService.RenderedCatalog catalog = productService.getRenderedCatalog();
+        return ResponseEntity.ok().eTag(eTag(catalog.version())).contentType(MediaType.APPLICATION_JSON).body(catalog.json());
+    }
+
+    // The same listing as application/x-ndjson, streamed page by page; for exports.
+    @GetMapping(value = "/", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> exportProducts(){
+        return NdJson.stream(objectMapper, productService::getProductPage);
+    }
+
+    // Keyset paging: GET /product/?limit=50, then after=<nextCursor of the previous page>.
+    @GetMapping(value = "/", params = "limit")
+    public Page<Product> getProductPage(@RequestParam(required = false) UUID after, @RequestParam int limit){
+        return productService.getProductPage(after, limit);
+    }
+
+    // sort: price, -price or name; q matches words of the name by prefix ("red sh" finds "Red Shirt").
+    @GetMapping("/search")
+    public ArrayList<Product> searchProducts(@RequestParam(required = false) String q,
+                                             @RequestParam(required = false) Double minPrice,
+                                             @RequestParam(required = false) Double maxPrice,
+                                             @RequestParam(required = false) String sort,
+                                             @RequestParam(defaultValue = "100") int limit){
+        return productService.searchProducts(q, minPrice, maxPrice, sort, limit);
+    }
+
+    // Best sellers: the n products with the most units sold, each with how far its count may be over.
+    @GetMapping("/top")
+    public List<ProductService.ProductSales> getTopProducts(@RequestParam(defaultValue = "50") int n){
+        return productService.getTopProducts(n);
+    }
+
+    // Autocomplete: up to 10 product names starting with the prefix, shortest first.
+    @GetMapping("/suggest")
+    public List<String> suggestProductNames(@RequestParam String prefix, @RequestParam(defaultValue = "10") int limit){
+        return productService.suggestProductNames(prefix, limit);
     }
 
+    // GET /product?ids=a,b,c; unknown ids are left out.
+    @GetMapping(value = "", params = "ids")
+    public ArrayList<Product> getProductsById(@RequestParam List<UUID> ids){
+        return productService.getProductsById(ids);
+    }
+
+    // The ETag is "<epoch>-<version>": a product deleted and created again may get an earlier
+    // version back after a restart, never within one epoch. If-Match on update takes it as is.
     @GetMapping("/{productId}")
-    public Product getProductById(@PathVariable UUID productId){
-        return productService.getProductById(productId);
+    public ResponseEntity<Product> getProductById(@PathVariable UUID productId, WebRequest request){
+        String epoch = productService.getVersionEpoch();
+        Long version = productService.getProductVersion(productId);
+        if (version != null && request.checkNotModified(eTag(epoch + "-" + version))) {
+            return null;
+        }
+        Product product = productService.getProductById(productId);
+        return ResponseEntity.ok().eTag(eTag(epoch + "-" + product.getVersion())).body(product);
     }
 
+    // If-Match: the ETag or "<version>" makes the update fail with 412 when the product changed since it was read.
     @PutMapping("/update/{productId}")
-    public Product updateProduct(@PathVariable UUID productId, @RequestBody Map<String, Object> body) {
+    public Product updateProduct(@PathVariable UUID productId, @RequestBody Map<String, Object> body,
+                                 @RequestHeader(value = "If-Match", required = false) String ifMatch) {
         String newName = (String) body.get("newName"); // Match key with request body
 
         Object priceObj = body.get("newPrice"); // Match key with request body
@@ -45,10 +118,14 @@ public class ProductController {
         if (priceObj instanceof Number) {
             newPrice = ((Number) priceObj).doubleValue();
         }
+        Long expectedVersion = IfMatch.parse(ifMatch, productService.getVersionEpoch());
         try{
-            return productService.updateProduct(productId, newName, newPrice);
+            return productService.updateProduct(productId, newName, newPrice, expectedVersion);
 
         }
+        catch(VersionConflictException e){
+            throw new ResponseStatusException(HttpStatus.PRECONDITION_FAILED, e.getMessage());
+        }
         catch(Exception e){
             return null;
         }
@@ -71,7 +148,14 @@ public class ProductController {
         return "Product deleted successfully";
     }
 
+    @DeleteMapping("/batch")
+    public String deleteProducts(@RequestBody ArrayList<UUID> productIds){
+        productService.deleteProducts(productIds);
+        return "Products deleted successfully";
+    }
 
+    private static String eTag(String version){
+        return "\"" + version + "\"";
+    }
 
-
-}
\ No newline at end of file
+}
@@ -3,14 +3,26 @@ package com.example.controller;
 import com.example.model.Cart;
 import com.example.model.Order;
 import com.example.model.User;
+import com.example.model.UserStats;
+import com.example.repository.Page;
+import com.example.repository.VersionConflictException;
 import com.example.service.CartService;
+import com.example.service.CheckoutJob;
 import com.example.service.ProductService;
 import com.example.service.UserService;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 import org.springframework.web.bind.annotation.*;
 
+import java.net.URI;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.RejectedExecutionException;
 
 @RestController
 @RequestMapping("/user")
@@ -20,11 +32,13 @@ public class UserController {
     private CartService cartService;
 
     private ProductService productService;
+    private ObjectMapper objectMapper;
     //The Constructor with the requried variables mapping the Dependency Injection.
-    public UserController(UserService userService, CartService cartService , ProductService productService) {
+    public UserController(UserService userService, CartService cartService , ProductService productService, ObjectMapper objectMapper) {
         this.userService = userService;
         this.cartService = cartService;
         this.productService = productService;
+        this.objectMapper = objectMapper;
     }
 
     @PostMapping("/")
@@ -32,11 +46,28 @@ public class UserController {
         return userService.addUser(user);
     }
 
+    @PostMapping("/batch")
+    public List<User> addUsers(@RequestBody ArrayList<User> users){
+        return userService.addUsers(users);
+    }
+
     @GetMapping("/")
     public ArrayList<User> getUsers(){
         return userService.getUsers();
     }
 
+    // The same listing as application/x-ndjson, streamed page by page; for exports.
+    @GetMapping(value = "/", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> exportUsers(){
+        return NdJson.stream(objectMapper, userService::getUserPage);
+    }
+
+    // Keyset paging: GET /user/?limit=50, then after=<nextCursor of the previous page>.
+    @GetMapping(value = "/", params = "limit")
+    public Page<User> getUserPage(@RequestParam(required = false) UUID after, @RequestParam int limit){
+        return userService.getUserPage(after, limit);
+    }
+
     @GetMapping("/{userId}")
     public User getUserById(@PathVariable UUID userId){
         return userService.getUserById(userId);
@@ -47,12 +78,46 @@ public class UserController {
         return userService.getOrdersByUserId(userId);
     }
 
+    @GetMapping("/{userId}/stats")
+    public UserStats getUserStats(@PathVariable UUID userId){
+        return userService.getUserStats(userId);
+    }
+
+    // 409 when the cart changed while the checkout was priced; nothing is ordered and it can be retried.
     @PostMapping("/{userId}/checkout")
     public String addOrderToUser(@PathVariable UUID userId){
-        userService.addOrderToUser(userId);
+        try {
+            userService.addOrderToUser(userId);
+        } catch (VersionConflictException e) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT, e.getMessage());
+        }
         return "Order added successfully";
     }
 
+    // Validates and prices the checkout, then stores it in the background: 202 with the job, whose
+    // status is at the Location given. 503 while the checkout queue is full.
+    @PostMapping(value = "/{userId}/checkout", params = "async=true")
+    public ResponseEntity<CheckoutJob> submitCheckout(@PathVariable UUID userId){
+        try {
+            CheckoutJob job = userService.submitCheckout(userId);
+            return ResponseEntity.accepted()
+                    .location(URI.create("/user/" + userId + "/checkout/" + job.getOrderId()))
+                    .body(job);
+        } catch (RejectedExecutionException e) {
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, e.getMessage());
+        }
+    }
+
+    // 404 unless the checkout exists and is the user's.
+    @GetMapping("/{userId}/checkout/{orderId}")
+    public CheckoutJob getCheckoutStatus(@PathVariable UUID userId, @PathVariable UUID orderId){
+        try {
+            return userService.getCheckoutStatus(userId, orderId);
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, e.getMessage());
+        }
+    }
+
     @PostMapping("/{userId}/removeOrder")
     public String removeOrderFromUser(@PathVariable UUID userId, @RequestParam UUID orderId){
         userService.removeOrderFromUser(userId, orderId);
@@ -67,19 +132,21 @@ public class UserController {
 
     @PutMapping("/addProductToCart")
     public String addProductToCart(@RequestParam UUID userId, @RequestParam UUID productId){
-        if(cartService.getCartByUserId(userId) == null){
-            cartService.addCart(new Cart(userId, new ArrayList<>()));
+        Cart cart = cartService.getCartByUserId(userId);
+        if(cart == null){
+            cart = cartService.addCart(new Cart(userId, new ArrayList<>()));
         }
-        cartService.addProductToCart(cartService.getCartByUserId(userId).getId(), productService.getProductById(productId));
+        cartService.addProductToCart(cart.getId(), productService.getProductById(productId));
         return "Product added to cart";
     }
 
     @PutMapping("/deleteProductFromCart")
     public String deleteProductFromCart(@RequestParam UUID userId, @RequestParam UUID productId){
-        if(cartService.getCartByUserId(userId) == null){
+        Cart cart = cartService.getCartByUserId(userId);
+        if(cart == null){
             return "Cart is empty";
         }
-        cartService.deleteProductFromCart(cartService.getCartByUserId(userId).getId(), productService.getProductById(productId));
+        cartService.deleteProductFromCart(cart.getId(), productService.getProductById(productId));
         return "Product deleted from cart";
     }
 
@@ -3,14 +3,20 @@ package com.example.model;
 import org.springframework.stereotype.Component;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.function.Function;
 
 @Component
-public class Cart {
+public class Cart implements Versioned {
     private UUID id;
+    private long version;
     private UUID userId;
-    private List<Product> products = new ArrayList<>();
+    private List<CartItem> items = new ArrayList<>();
+    // Current data of the items' products, filled in by resolveProducts; never stored.
+    private Map<UUID, Product> resolved = new HashMap<>();
 
     public Cart(){
 
@@ -19,13 +25,13 @@ public class Cart {
     public Cart(UUID id, UUID userId, List<Product> products){
         this.id = id;
         this.userId = userId;
-        this.products = products;
+        setProducts(products);
     }
 
     public Cart(UUID userId, List<Product> products){
         this.id = UUID.randomUUID();
         this.userId = userId;
-        this.products = products;
+        setProducts(products);
     }
 
     public UUID getId() {
@@ -36,6 +42,16 @@ public class Cart {
         this.id = id;
     }
 
+    @Override
+    public long getVersion() {
+        return version;
+    }
+
+    @Override
+    public void setVersion(long version) {
+        this.version = version;
+    }
+
     public UUID getUserId() {
         return userId;
     }
@@ -44,14 +60,80 @@ public class Cart {
         this.userId = userId;
     }
 
+    public List<CartItem> getItems() {
+        return items;
+    }
+
+    public void setItems(List<CartItem> items) {
+        this.items = items;
+    }
+
+    /**
+     * The cart's products, each repeated as often as its quantity. Products looked up by
+     * resolveProducts show their current data; the others only their id and the price they
+     * were added at.
+     */
     public List<Product> getProducts() {
+        List<Product> products = new ArrayList<>();
+        for (CartItem item : items) {
+            Product product = resolved.get(item.getProductId());
+            if (product == null) {
+                product = new Product(item.getProductId(), null, item.getUnitPrice());
+            }
+            for (int i = 0; i < item.getQuantity(); i++) {
+                products.add(product);
+            }
+        }
         return products;
     }
 
     public void setProducts(List<Product> products) {
-        this.products = products;
+        this.items = new ArrayList<>();
+        if (products != null) {
+            for (Product product : products) {
+                addProduct(product);
+            }
+        }
     }
 
+    public void addProduct(Product product) {
+        for (CartItem item : items) {
+            if (item.getProductId().equals(product.getId())) {
+                item.setQuantity(item.getQuantity() + 1);
+                item.setUnitPrice(product.getPrice());
+                return;
+            }
+        }
+        items.add(new CartItem(product.getId(), 1, product.getPrice()));
+    }
 
-}
+    /** Takes one of the product out of the cart; returns false if the cart has none. */
+    public boolean removeProduct(UUID productId) {
+        for (CartItem item : items) {
+            if (item.getProductId().equals(productId)) {
+                item.setQuantity(item.getQuantity() - 1);
+                if (item.getQuantity() <= 0) {
+                    items.remove(item);
+                }
+                return true;
+            }
+        }
+        return false;
+    }
 
+    /** Drops the product's line whatever its quantity; returns false if the cart has none. */
+    public boolean removeItem(UUID productId) {
+        return items.removeIf(item -> item.getProductId().equals(productId));
+    }
+
+    /** Looks up the current data of every product in the cart; lookup returns null for unknown ids. */
+    public void resolveProducts(Function<UUID, Product> lookup) {
+        resolved = new HashMap<>();
+        for (CartItem item : items) {
+            Product product = lookup.apply(item.getProductId());
+            if (product != null) {
+                resolved.put(item.getProductId(), product);
+            }
+        }
+    }
+}
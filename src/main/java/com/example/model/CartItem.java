@@ -0,0 +1,51 @@
+package com.example.model;
+
+import org.springframework.stereotype.Component;
+
+import java.util.UUID;
+
+/**
+ * One line of a cart: a product by id and how many of it. The product's name and current price
+ * are looked up when the cart is read; unitPrice is only what the product cost when it was
+ * added, kept for products that are not in the catalog.
+ */
+@Component
+public class CartItem {
+    private UUID productId;
+    private int quantity;
+    private double unitPrice;
+
+    public CartItem(){
+
+    }
+
+    public CartItem(UUID productId, int quantity, double unitPrice){
+        this.productId = productId;
+        this.quantity = quantity;
+        this.unitPrice = unitPrice;
+    }
+
+    public UUID getProductId() {
+        return productId;
+    }
+
+    public void setProductId(UUID productId) {
+        this.productId = productId;
+    }
+
+    public int getQuantity() {
+        return quantity;
+    }
+
+    public void setQuantity(int quantity) {
+        this.quantity = quantity;
+    }
+
+    public double getUnitPrice() {
+        return unitPrice;
+    }
+
+    public void setUnitPrice(double unitPrice) {
+        this.unitPrice = unitPrice;
+    }
+}
@@ -7,11 +7,14 @@ import java.util.List;
 import java.util.UUID;
 
 @Component
-public class Order {
+public class Order implements Versioned {
     private UUID id;
+    private long version;
     private UUID userId;
     private double totalPrice;
-    private List<Product> products=new ArrayList<>();
+    // When the order was placed, in epoch milliseconds; 0 for orders stored before it was recorded.
+    private long createdAt;
+    private List<OrderLine> lines = new ArrayList<>();
 
     public Order(){
 
@@ -20,15 +23,17 @@ public class Order {
     public Order(UUID id, UUID userId, double totalPrice, List<Product> products){
         this.id = id;
         this.userId = userId;
-        this.products = products;
+        setProducts(products);
         this.totalPrice = totalPrice;
+        this.createdAt = System.currentTimeMillis();
     }
 
     public Order(UUID userId, double totalPrice, List<Product> products){
         this.id = UUID.randomUUID();
         this.userId = userId;
-        this.products = products;
+        setProducts(products);
         this.totalPrice = totalPrice;
+        this.createdAt = System.currentTimeMillis();
     }
 
     public UUID getId() {
@@ -39,6 +44,16 @@ public class Order {
         this.id = id;
     }
 
+    @Override
+    public long getVersion() {
+        return version;
+    }
+
+    @Override
+    public void setVersion(long version) {
+        this.version = version;
+    }
+
     public UUID getUserId() {
         return userId;
     }
@@ -55,12 +70,52 @@ public class Order {
         this.totalPrice = totalPrice;
     }
 
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    public void setCreatedAt(long createdAt) {
+        this.createdAt = createdAt;
+    }
+
+    public List<OrderLine> getLines() {
+        return lines;
+    }
+
+    public void setLines(List<OrderLine> lines) {
+        this.lines = lines;
+    }
+
+    /**
+     * The ordered products, each repeated as often as its quantity, with the price it was bought
+     * at. Only the lines are stored (see OrderRepository.StoredOrder); a list of products is
+     * still accepted as input.
+     */
     public List<Product> getProducts() {
+        List<Product> products = new ArrayList<>();
+        for (OrderLine line : lines) {
+            Product product = new Product(line.getProductId(), null, line.getUnitPrice());
+            for (int i = 0; i < line.getQuantity(); i++) {
+                products.add(product);
+            }
+        }
         return products;
     }
 
     public void setProducts(List<Product> products) {
-        this.products = products;
+        this.lines = new ArrayList<>();
+        if (products == null) {
+            return;
+        }
+        for (Product product : products) {
+            OrderLine line = lines.stream()
+                    .filter(l -> l.getProductId().equals(product.getId()) && l.getUnitPrice() == product.getPrice())
+                    .findFirst().orElse(null);
+            if (line == null) {
+                lines.add(new OrderLine(product.getId(), product.getPrice(), 1));
+            } else {
+                line.setQuantity(line.getQuantity() + 1);
+            }
+        }
     }
 }
-
@@ -0,0 +1,47 @@
+package com.example.model;
+
+import org.springframework.stereotype.Component;
+
+import java.util.UUID;
+
+/** One line of an order: a product by id, the price it was bought at, and how many of it. */
+@Component
+public class OrderLine {
+    private UUID productId;
+    private double unitPrice;
+    private int quantity;
+
+    public OrderLine(){
+
+    }
+
+    public OrderLine(UUID productId, double unitPrice, int quantity){
+        this.productId = productId;
+        this.unitPrice = unitPrice;
+        this.quantity = quantity;
+    }
+
+    public UUID getProductId() {
+        return productId;
+    }
+
+    public void setProductId(UUID productId) {
+        this.productId = productId;
+    }
+
+    public double getUnitPrice() {
+        return unitPrice;
+    }
+
+    public void setUnitPrice(double unitPrice) {
+        this.unitPrice = unitPrice;
+    }
+
+    public int getQuantity() {
+        return quantity;
+    }
+
+    public void setQuantity(int quantity) {
+        this.quantity = quantity;
+    }
+}
@@ -6,8 +6,9 @@ import java.util.Objects;
 import java.util.UUID;
 
 @Component
-public class Product {
+public class Product implements Versioned {
     private UUID id;
+    private long version;
     private String name;
     private double price;
 
@@ -35,6 +36,16 @@ public class Product {
         this.id = id;
     }
 
+    @Override
+    public long getVersion() {
+        return version;
+    }
+
+    @Override
+    public void setVersion(long version) {
+        this.version = version;
+    }
+
     public String getName() {
         return name;
     }
@@ -8,10 +8,12 @@ import java.util.UUID;
 
 
 @Component
-public class User {
+public class User implements Versioned {
     private UUID id;
+    private long version;
     private String name;
     private List<Order> orders = new ArrayList<>();
+    private UserStats stats = new UserStats();
 
     public User(){
 
@@ -20,13 +22,13 @@ public class User {
     public User(UUID id, String name, List<Order> orders) {
         this.id = id;
         this.name = name;
-        this.orders = orders;
+        setOrders(orders);
     }
 
     public User(String name, List<Order> orders){
         this.id = UUID.randomUUID();
         this.name = name;
-        this.orders = orders;
+        setOrders(orders);
     }
 
 
@@ -38,6 +40,16 @@ public class User {
         this.id = id;
     }
 
+    @Override
+    public long getVersion() {
+        return version;
+    }
+
+    @Override
+    public void setVersion(long version) {
+        this.version = version;
+    }
+
     public String getName() {
         return name;
     }
@@ -50,7 +62,35 @@ public class User {
         return orders;
     }
 
+    // Replacing the orders recomputes the stats; records stored before stats existed get theirs here.
     public void setOrders(List<Order> orders) {
         this.orders = orders;
+        this.stats = UserStats.of(orders);
+    }
+
+    // Adds the order and counts it in the stats.
+    public void addOrder(Order order) {
+        orders.add(order);
+        stats.addOrder(order);
+    }
+
+    // Removes the order with that id, if there is one, and uncounts it.
+    public void removeOrder(UUID orderId) {
+        for (Order order : orders) {
+            if (order.getId().equals(orderId)) {
+                orders.remove(order);
+                stats.removeOrder(order, orders.isEmpty() ? null : orders.get(orders.size() - 1));
+                return;
+            }
+        }
+    }
+
+    public UserStats getStats() {
+        return stats;
+    }
+
+    // Stats that do not fit the orders (orders edited without them) are recomputed from the orders.
+    public void setStats(UserStats stats) {
+        this.stats = stats != null && stats.describes(orders) ? stats : UserStats.of(orders);
     }
 }
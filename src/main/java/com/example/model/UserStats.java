@@ -0,0 +1,81 @@
+package com.example.model;
+
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.UUID;
+
+/**
+ * Running totals over a user's orders, stored with the user and updated as orders are added and
+ * removed, so reading them does not walk the orders.
+ */
+@Component
+public class UserStats {
+    private int orderCount;
+    private double totalSpent;
+    private UUID lastOrderId;
+
+    public UserStats(){
+
+    }
+
+    public UserStats(int orderCount, double totalSpent, UUID lastOrderId){
+        this.orderCount = orderCount;
+        this.totalSpent = totalSpent;
+        this.lastOrderId = lastOrderId;
+    }
+
+    public static UserStats of(List<Order> orders){
+        UserStats stats = new UserStats();
+        if (orders != null) {
+            for (Order order : orders) {
+                stats.addOrder(order);
+            }
+        }
+        return stats;
+    }
+
+    // A cheap consistency check against the orders the stats were stored with.
+    public boolean describes(List<Order> orders){
+        int size = orders == null ? 0 : orders.size();
+        return orderCount == size && Objects.equals(lastOrderId, size == 0 ? null : orders.get(size - 1).getId());
+    }
+
+    public void addOrder(Order order){
+        orderCount++;
+        totalSpent += order.getTotalPrice();
+        lastOrderId = order.getId();
+    }
+
+    // lastOrder is the latest order the user still has after the removal, or null if none is left.
+    public void removeOrder(Order order, Order lastOrder){
+        orderCount--;
+        totalSpent = orderCount == 0 ? 0 : totalSpent - order.getTotalPrice();
+        lastOrderId = lastOrder == null ? null : lastOrder.getId();
+    }
+
+    public int getOrderCount() {
+        return orderCount;
+    }
+
+    public void setOrderCount(int orderCount) {
+        this.orderCount = orderCount;
+    }
+
+    public double getTotalSpent() {
+        return totalSpent;
+    }
+
+    public void setTotalSpent(double totalSpent) {
+        this.totalSpent = totalSpent;
+    }
+
+    public UUID getLastOrderId() {
+        return lastOrderId;
+    }
+
+    public void setLastOrderId(UUID lastOrderId) {
+        this.lastOrderId = lastOrderId;
+    }
+}
@@ -0,0 +1,13 @@
+package com.example.model;
+
+/**
+ * An entity whose repository counts its stored changes. The version starts at 0 and goes up by
+ * one on every update; clients send the version they read (If-Match) to avoid overwriting a
+ * change they have not seen.
+ */
+public interface Versioned {
+
+    long getVersion();
+
+    void setVersion(long version);
+}
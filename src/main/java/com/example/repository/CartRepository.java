@@ -1,11 +1,14 @@
 package com.example.repository;
 
 import com.example.model.Cart;
+import com.example.model.CartItem;
 import com.example.model.Product;
+import com.fasterxml.jackson.annotation.JsonProperty;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Repository;
 
 import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
 
 @Repository
@@ -24,7 +27,22 @@ public class CartRepository extends MainRepository<Cart> {
         return Cart[].class;
     }
 
+    @Override
+    protected UUID getId(Cart cart) {
+        return cart.getId();
+    }
+
+    private final SecondaryIndex<Cart> userIdIndex = addIndex(Cart::getUserId);
+    private final SecondaryIndex<Cart> productIdIndex = addMultiIndex(cart -> cart.getItems().stream().map(CartItem::getProductId).toList());
+
+    // Carts are stored as their items only; the products are looked up again on read.
+    private abstract static class StoredCart {
+        @JsonProperty(access = JsonProperty.Access.WRITE_ONLY)
+        abstract List<Product> getProducts();
+    }
+
     public CartRepository() {
+        objectMapper.addMixIn(Cart.class, StoredCart.class);
     }
 
     public Cart addCart(Cart cart){
@@ -34,58 +52,39 @@ public class CartRepository extends MainRepository<Cart> {
     public ArrayList<Cart> getCarts(){
         return this.findAll();
     }
+    public Page<Cart> getCartPage(UUID after, int limit){
+        return this.findPage(after, limit);
+    }
     public Cart getCartById(UUID cartId){
-        for (Cart cart : this.getCarts()) {
-            if (cart.getId() != null && cart.getId().equals(cartId)) {
-                return cart;
-            }
-        }
-        return null;
+        return this.findById(cartId);
     }
 
     public Cart getCartByUserId(UUID userId){
-        for (Cart cart : this.getCarts()) {
-            if (cart.getUserId() != null && cart.getUserId().equals(userId)) {
-                return cart;
-            }
-        }
-        return null;
+        return this.findFirstBy(userIdIndex, userId);
     }
 
     public void addProductToCart(UUID cartId, Product product){
-        ArrayList<Cart> carts = this.getCarts();
-        for (Cart cart : carts) {
-            if (cart.getId() != null && cart.getId().equals(cartId)) {
-                cart.getProducts().add(product);
-                break;
-            }
-        }
-        this.overrideData(carts);
+        addProductToCart(cartId, product, null);
+    }
+    public Cart addProductToCart(UUID cartId, Product product, Long expectedVersion){
+        return this.compareAndUpdate(cartId, expectedVersion, cart -> cart.addProduct(product));
     }
     public void deleteProductFromCart(UUID cartId, Product product){
-        ArrayList<Cart> carts = this.getCarts();
-        for (Cart cart : carts) {
-            if (cart.getId() != null && cart.getId().equals(cartId)) {
-                cart.getProducts().remove(product);
-                break;
-            }
+        this.modify(cartId, cart -> cart.removeProduct(product.getId()));
+    }
+    public void emptyCart(UUID cartId){
+        this.modify(cartId, cart -> cart.getItems().clear());
+    }
+    public void removeProductFromCarts(UUID productId){
+        for (Cart cart : this.findAllBy(productIdIndex, productId)) {
+            this.modify(cart.getId(), stored -> stored.removeItem(productId));
         }
-        this.overrideData(carts);
     }
     public void deleteCartById(UUID cartId){
-        ArrayList<Cart> carts = this.getCarts();
-        for (Cart cart : carts) {
-            if (cart.getId() != null && cart.getId().equals(cartId)) {
-                carts.remove(cart);
-                break;
-            }
-        }
-        this.overrideData(carts);
+        this.deleteById(cartId);
     }
 
     public void clearCarts() {
-        ArrayList<Cart> carts = this.findAll();
-        carts.clear();
-        this.overrideData(carts);
+        this.overrideData(new ArrayList<>());
     }
 }
\ No newline at end of file
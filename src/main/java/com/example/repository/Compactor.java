@@ -0,0 +1,118 @@
+package com.example.repository;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Folds a journaled repository's journals into fresh snapshots on a dedicated thread, periodically
+ * and whenever the flusher reports a journal over its limits. What it does is published as
+ * Micrometer meters tagged repository=&lt;entity&gt;:
+ *
+ *   repository.compaction.runs             shards compacted
+ *   repository.compaction.bytes.reclaimed  old snapshot + sealed journal bytes minus new snapshot bytes
+ *   repository.compaction.duration         time to compact one shard
+ *   repository.compaction.pause            time the compactor held the flush lock, blocking writes
+ *   repository.compaction.progress         fraction of shards visited by the current pass, 1 when idle
+ */
+class Compactor implements AutoCloseable {
+
+    /** Compacts one shard if it is due; returns the bytes reclaimed, or -1 if nothing was done. */
+    interface ShardCompaction {
+        long compact(Shard shard) throws Exception;
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(Compactor.class);
+
+    private final List<Shard> shards;
+    private final ShardCompaction compaction;
+    private final ScheduledExecutorService executor;
+
+    private final AtomicLong runs = new AtomicLong();
+    private final AtomicLong bytesReclaimed = new AtomicLong();
+    private volatile double progress = 1.0;
+    private final Timer duration;
+    private final Timer pause;
+
+    Compactor(String name, List<Shard> shards, long intervalMillis, ShardCompaction compaction, MeterRegistry registry) {
+        this.shards = shards;
+        this.compaction = compaction;
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, name + "-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (registry != null) {
+            FunctionCounter.builder("repository.compaction.runs", runs, AtomicLong::get)
+                    .tag("repository", name).register(registry);
+            FunctionCounter.builder("repository.compaction.bytes.reclaimed", bytesReclaimed, AtomicLong::get)
+                    .baseUnit("bytes").tag("repository", name).register(registry);
+            Gauge.builder("repository.compaction.progress", this, compactor -> compactor.progress)
+                    .tag("repository", name).register(registry);
+            duration = Timer.builder("repository.compaction.duration").tag("repository", name).register(registry);
+            pause = Timer.builder("repository.compaction.pause").tag("repository", name).register(registry);
+        } else {
+            duration = null;
+            pause = null;
+        }
+        executor.scheduleWithFixedDelay(this::run, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /** Asks for a pass as soon as the compactor thread is free. */
+    void request() {
+        try {
+            executor.execute(this::run);
+        } catch (RejectedExecutionException e) {
+            // Shutting down.
+        }
+    }
+
+    void recordPause(long nanos) {
+        if (pause != null) {
+            pause.record(nanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private void run() {
+        int visited = 0;
+        progress = 0.0;
+        for (Shard shard : shards) {
+            long start = System.nanoTime();
+            try {
+                long reclaimed = compaction.compact(shard);
+                if (reclaimed >= 0) {
+                    runs.incrementAndGet();
+                    bytesReclaimed.addAndGet(Math.max(reclaimed, 0));
+                    if (duration != null) {
+                        duration.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                    }
+                }
+            } catch (Exception e) {
+                log.warn("Compacting {} failed; it will be retried", shard.getDataPath(), e);
+            }
+            progress = (double) ++visited / shards.size();
+        }
+        progress = 1.0;
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
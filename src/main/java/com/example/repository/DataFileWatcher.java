@@ -0,0 +1,90 @@
+package com.example.repository;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Watches the directory holding a repository's files and runs a callback when one of them is
+ * created, modified or replaced from outside, e.g. an edit on the host of a bind-mounted file.
+ * Bursts of events (editors write in several steps) are collapsed into one callback; onEvent
+ * runs as soon as the first of them arrives, so readers can stop trusting the cache right away.
+ */
+class DataFileWatcher implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(DataFileWatcher.class);
+    private static final long SETTLE_MILLIS = 50;
+
+    private final Set<Path> fileNames;
+    private final Runnable onEvent;
+    private final Runnable onChange;
+    private final WatchService watchService;
+    private final Thread thread;
+
+    DataFileWatcher(String name, Set<Path> files, Runnable onEvent, Runnable onChange) throws IOException {
+        Path directory = files.iterator().next().toAbsolutePath().getParent();
+        this.fileNames = files.stream().map(Path::getFileName).collect(java.util.stream.Collectors.toSet());
+        this.onEvent = onEvent;
+        this.onChange = onChange;
+        this.watchService = FileSystems.getDefault().newWatchService();
+        directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        this.thread = new Thread(this::run, name + "-file-watcher");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                boolean relevant = matches(key);
+                // Keep draining until the files have been quiet for a moment.
+                WatchKey next;
+                while ((next = watchService.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+                    relevant |= matches(next);
+                }
+                if (relevant) {
+                    try {
+                        onChange.run();
+                    } catch (RuntimeException e) {
+                        log.warn("Reloading {} after an external change failed", fileNames, e);
+                    }
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // closed
+        }
+    }
+
+    private boolean matches(WatchKey key) {
+        boolean relevant = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            Object context = event.context();
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW || fileNames.contains(context)) {
+                relevant = true;
+            }
+        }
+        key.reset();
+        if (relevant) {
+            onEvent.run();
+        }
+        return relevant;
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+        thread.interrupt();
+    }
+}
@@ -0,0 +1,47 @@
+package com.example.repository;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Offline conversion of snapshot files between JSON, Smile and CBOR. Run it while the application
+ * is stopped, once per file (every shard is its own file), then set
+ * spring.application.&lt;entity&gt;Encoding to the same encoding:
+ *
+ *   java -cp mini1.jar -Dloader.main=com.example.repository.EncodingTool \
+ *       org.springframework.boot.loader.launch.PropertiesLauncher &lt;file&gt;... &lt;json|smile|cbor&gt;
+ *
+ * Each file is read in whatever encoding it is in and replaced atomically. Journals are left
+ * alone; they are always JSON lines.
+ */
+public final class EncodingTool {
+
+    private EncodingTool() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: EncodingTool <file>... <json|smile|cbor>");
+            System.exit(2);
+        }
+        SnapshotEncoding target = SnapshotEncoding.of(args[args.length - 1]);
+        for (int i = 0; i < args.length - 1; i++) {
+            Path path = Path.of(args[i]);
+            long before = Files.size(path);
+            long after = convert(path, target);
+            System.out.println(path + ": " + before + " -> " + after + " bytes");
+        }
+    }
+
+    /** Rewrites the file in the target encoding and returns its new size. */
+    static long convert(Path path, SnapshotEncoding target) throws IOException {
+        JsonNode entities = new ObjectMapper(SnapshotEncoding.detect(path).factory()).readTree(path.toFile());
+        byte[] content = new ObjectMapper(target.factory()).writeValueAsBytes(entities);
+        FileStorageEngine.writeAtomically(path, content);
+        return content.length;
+    }
+}
@@ -0,0 +1,16 @@
+package com.example.repository;
+
+import java.util.UUID;
+
+/**
+ * Something a repository keeps up to date with its entities, e.g. a {@link SecondaryIndex}. Every
+ * call is made under the repository's cache write lock, with the instances stored in the cache.
+ */
+interface EntityIndex<T> {
+
+    void add(UUID id, T entity);
+
+    void remove(UUID id, T entity);
+
+    void clear();
+}
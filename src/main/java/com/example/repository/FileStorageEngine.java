@@ -0,0 +1,405 @@
+package com.example.repository;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * The default engine: the repository's data path holds a JSON snapshot (or the repository's own
+ * format, see {@link MainRepository#readSnapshot}), hash-partitioned into {@link Shard}s and, in
+ * journal mode, followed by an append-only {@link Journal} that a {@link Compactor} folds back into
+ * the snapshot in the background. Edits made to the files from outside are noticed by a
+ * {@link DataFileWatcher} and, at most every staleCheckMillis, by comparing file stamps.
+ */
+class FileStorageEngine<T> implements StorageEngine<T> {
+
+    private final MainRepository<T> repository;
+    private final MeterRegistry meterRegistry;
+    private final String name;
+
+    // Guards the files themselves; taken after the repository's cache lock, never before it.
+    private final ReentrantLock flushLock = new ReentrantLock();
+    // What the files looked like when they were last loaded or written by us; null when unknown.
+    private volatile List<FileStamp> knownStamp;
+    // Reads trust knownStamp without a stat until nextStampCheck (System.nanoTime()), unless the
+    // watcher saw a file change, which sets filesTouched until a stat finds the files as known.
+    private final long staleCheckNanos;
+    private volatile long nextStampCheck;
+    private volatile boolean filesTouched;
+
+    // The data is hash-partitioned over these; a single shard is just the configured data path.
+    // In journal mode each shard appends its changes to its own journal and its file is the last snapshot.
+    private final List<Shard> shards;
+    private final SecondaryIndex<T> shardIndex;
+    private final boolean journaled;
+    private final long journalMaxRecords;
+    private final long journalMaxBytes;
+
+    // In journal mode, folds full journals into new snapshots off the writer's thread,
+    // holding flushLock for at most compactionMaxPauseMillis at a time.
+    private Compactor compactor;
+    private final long compactionMaxPauseMillis;
+
+    private DataFileWatcher watcher;
+
+    FileStorageEngine(MainRepository<T> repository, MeterRegistry meterRegistry) {
+        this.repository = repository;
+        this.meterRegistry = meterRegistry;
+        this.name = repository.getEntityType().getSimpleName().toLowerCase();
+        journaled = "journal".equalsIgnoreCase(repository.getSetting("storageMode", "snapshot"));
+        journalMaxRecords = Long.parseLong(repository.getSetting("journalMaxRecords", "10000"));
+        journalMaxBytes = Long.parseLong(repository.getSetting("journalMaxBytes", String.valueOf(64L * 1024 * 1024)));
+        compactionMaxPauseMillis = Long.parseLong(repository.getSetting("compactionMaxPauseMillis", "50"));
+        staleCheckNanos = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(repository.getSetting("staleCheckMillis", "0")));
+        int shardCount = Integer.parseInt(repository.getSetting("shards", "1"));
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("Shard count must be at least 1");
+        }
+        List<Shard> configured = new ArrayList<>();
+        for (int i = 0; i < shardCount; i++) {
+            Path path = Shard.pathFor(repository.getDataPath(), i, shardCount);
+            configured.add(new Shard(i, path, journaled ? new Journal(Shard.journalPathFor(path), repository.objectMapper) : null));
+        }
+        shards = List.copyOf(configured);
+        shardIndex = shardCount > 1 ? repository.addIndex(entity -> Shard.of(repository.getId(entity), shardCount)) : null;
+    }
+
+    @Override
+    public void open(Runnable onExternalChange) throws IOException {
+        if (journaled && compactor == null) {
+            compactor = new Compactor(name, shards,
+                    Long.parseLong(repository.getSetting("compactionIntervalMillis", "60000")), this::compact, meterRegistry);
+        }
+        if (watcher == null && Boolean.parseBoolean(repository.getSetting("watchDataFiles", "true"))) {
+            Set<Path> files = new HashSet<>();
+            shards.forEach(shard -> files.addAll(shard.files()));
+            watcher = new DataFileWatcher(name, files, () -> filesTouched = true, onExternalChange);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (compactor != null) {
+            compactor.close();
+        }
+        flushLock.lock();
+        try {
+            if (watcher != null) {
+                watcher.close();
+            }
+            for (Shard shard : shards) {
+                shard.close();
+            }
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    // Called on every read, so it only stats the files (one to three per shard) when the watcher
+    // saw them change or the last stat is older than staleCheckMillis; in between the answer is
+    // "not stale" for free. Once stale, it stays so until a stat finds the files as known again.
+    @Override
+    public boolean isStale() {
+        long now = System.nanoTime();
+        if (!filesTouched && knownStamp != null && now - nextStampCheck < 0) {
+            return false;
+        }
+        filesTouched = false;
+        nextStampCheck = now + staleCheckNanos;
+        boolean stale = filesChanged();
+        if (stale) {
+            filesTouched = true;
+        }
+        return stale;
+    }
+
+    // The exact check, for when an outside edit must not be missed (e.g. before a compaction swap).
+    private boolean filesChanged() {
+        return !Objects.equals(currentStamp(), knownStamp);
+    }
+
+    @Override
+    public boolean isAt(Object version) {
+        return Objects.equals(currentStamp(), version);
+    }
+
+    @Override
+    public void markLoaded(Object version) {
+        @SuppressWarnings("unchecked")
+        List<FileStamp> stamp = (List<FileStamp>) version;
+        knownStamp = stamp;
+    }
+
+    @Override
+    public Loaded<T> load() throws IOException {
+        flushLock.lock();
+        try {
+            while (true) {
+                List<FileStamp> before = currentStamp();
+                // Shards are independent files, so they are parsed in parallel and concatenated in shard order.
+                List<LinkedHashMap<UUID, T>> parts = shards.parallelStream().map(this::readShard).toList();
+                LinkedHashMap<UUID, T> entities = new LinkedHashMap<>();
+                parts.forEach(entities::putAll);
+                // Retry if the files changed while being read (or replay cut off a torn record).
+                List<FileStamp> after = currentStamp();
+                if (Objects.equals(before, after)) {
+                    return new Loaded<>(entities, after);
+                }
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    private LinkedHashMap<UUID, T> readShard(Shard shard) {
+        try {
+            LinkedHashMap<UUID, T> entities = new LinkedHashMap<>();
+            File file = shard.getDataPath().toFile();
+            if (file.exists()) {
+                repository.readSnapshot(file, entity -> entities.put(repository.getId(entity), entity));
+            }
+            if (shard.getJournal() != null) {
+                shard.getJournal().replay(entities, repository.getEntityType());
+            }
+            return entities;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Only shards touched by the batch are written: one atomic file rewrite or one journal
+    // append + fsync per shard per batch. Journals that grow past their limits are left to the compactor.
+    @Override
+    public Write prepare(List<Change<T>> batch, Map<UUID, T> current) throws IOException {
+        Map<Shard, List<byte[]>> appends = new LinkedHashMap<>();
+        Map<Shard, byte[]> snapshots = new LinkedHashMap<>();
+        Set<Shard> rewrite = new HashSet<>();
+        for (Change<T> change : batch) {
+            Shard shard = shards.get(Shard.of(change.id(), shards.size()));
+            if (change.op() == Op.REPLACE_ALL) {
+                rewrite.addAll(shards);
+            } else if (!journaled) {
+                rewrite.add(shard);
+            } else {
+                appends.computeIfAbsent(shard, s -> new ArrayList<>())
+                        .add(shard.getJournal().encode(change.op(), change.id(), change.entity()));
+            }
+        }
+        for (Shard shard : shards) {
+            if (rewrite.contains(shard)) {
+                snapshots.put(shard, repository.encodeSnapshot(entitiesOf(shard, current)));
+                appends.remove(shard);
+            }
+        }
+        return () -> commit(snapshots, appends);
+    }
+
+    private Collection<T> entitiesOf(Shard shard, Map<UUID, T> current) {
+        if (shards.size() == 1) {
+            return current.values();
+        }
+        List<T> entities = new ArrayList<>();
+        for (UUID id : shardIndex.get(shard.getNumber())) {
+            entities.add(current.get(id));
+        }
+        return entities;
+    }
+
+    private void commit(Map<Shard, byte[]> snapshots, Map<Shard, List<byte[]>> appends) throws IOException {
+        boolean compactionDue = false;
+        flushLock.lock();
+        try {
+            for (var entry : snapshots.entrySet()) {
+                Shard shard = entry.getKey();
+                writeAtomically(shard.getDataPath(), entry.getValue());
+                if (shard.getJournal() != null) {
+                    // The new snapshot already holds whatever a running compaction is merging; make it give up.
+                    shard.getJournal().reset();
+                    Files.deleteIfExists(shard.getJournal().getSealedPath());
+                    shard.nextGeneration();
+                }
+            }
+            for (var entry : appends.entrySet()) {
+                entry.getKey().getJournal().append(entry.getValue());
+                compactionDue |= isOverLimit(entry.getKey().getJournal());
+            }
+            knownStamp = currentStamp();
+        } catch (IOException e) {
+            knownStamp = null;
+            throw e;
+        } finally {
+            flushLock.unlock();
+        }
+        if (compactionDue && compactor != null) {
+            compactor.request();
+        }
+    }
+
+    private boolean isOverLimit(Journal journal) {
+        return journal.getRecords() >= journalMaxRecords || journal.getBytes() >= journalMaxBytes;
+    }
+
+    // Runs on the compactor's thread: seals the shard's journal, merges the sealed records into a
+    // new snapshot without holding any lock, then swaps it in. flushLock is only taken, with a
+    // bounded wait, to seal and to swap; if anything rewrote the shard in between, the merge is
+    // thrown away and the next pass starts over.
+    private long compact(Shard shard) throws IOException, InterruptedException {
+        Journal journal = shard.getJournal();
+        long generation;
+        if (!flushLock.tryLock(compactionMaxPauseMillis, TimeUnit.MILLISECONDS)) {
+            return -1;
+        }
+        long locked = System.nanoTime();
+        try {
+            // Leave files edited from outside to the repository's reload instead of folding them into a snapshot.
+            if (knownStamp == null || filesChanged()) {
+                return -1;
+            }
+            if (!Files.exists(journal.getSealedPath())) {
+                if (!isOverLimit(journal) || !journal.seal()) {
+                    return -1;
+                }
+                knownStamp = currentStamp();
+            }
+            generation = shard.getGeneration();
+        } finally {
+            flushLock.unlock();
+            compactor.recordPause(System.nanoTime() - locked);
+        }
+
+        Path snapshot = shard.getDataPath();
+        Path sealed = journal.getSealedPath();
+        long before = Files.size(sealed) + (Files.exists(snapshot) ? Files.size(snapshot) : 0);
+        LinkedHashMap<UUID, T> entities = new LinkedHashMap<>();
+        if (Files.exists(snapshot)) {
+            repository.readSnapshot(snapshot.toFile(), entity -> entities.put(repository.getId(entity), entity));
+        }
+        journal.replaySealed(entities, repository.getEntityType());
+        byte[] content = repository.encodeSnapshot(entities.values());
+        Path temp = snapshot.resolveSibling(snapshot.getFileName() + ".compacted");
+        writeFully(temp, content);
+
+        if (!flushLock.tryLock(compactionMaxPauseMillis, TimeUnit.MILLISECONDS)) {
+            Files.deleteIfExists(temp);
+            return -1;
+        }
+        locked = System.nanoTime();
+        try {
+            if (shard.getGeneration() != generation || filesChanged()) {
+                Files.deleteIfExists(temp);
+                return -1;
+            }
+            // Replaying the sealed records again on top of the new snapshot is harmless,
+            // so a crash between these two steps loses nothing.
+            moveIntoPlace(temp, snapshot, content);
+            Files.delete(sealed);
+            knownStamp = currentStamp();
+        } finally {
+            flushLock.unlock();
+            compactor.recordPause(System.nanoTime() - locked);
+        }
+        return before - content.length;
+    }
+
+    // Writes next to the target, fsyncs, then renames over it so a crash never leaves a torn file.
+    // A file that is itself a bind mount cannot be renamed over; those are rewritten in place instead.
+    static void writeAtomically(Path target, byte[] content) throws IOException {
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        writeFully(temp, content);
+        moveIntoPlace(temp, target, content);
+    }
+
+    private static void moveIntoPlace(Path temp, Path target, byte[] content) throws IOException {
+        try {
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            forceDirectory(target.toAbsolutePath().getParent());
+        } catch (AtomicMoveNotSupportedException e) {
+            writeFully(target, content);
+            Files.deleteIfExists(temp);
+        } catch (FileSystemException e) {
+            writeFully(target, content);
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    // The rename lives in the directory entry, not the file: until the directory is fsynced a crash
+    // can bring back the old file even though the new contents were forced. Some platforms (Windows)
+    // cannot open a directory at all; there the rename is as durable as it gets.
+    private static void forceDirectory(Path directory) throws IOException {
+        if (directory == null) {
+            return;
+        }
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(directory, StandardOpenOption.READ);
+        } catch (IOException e) {
+            return;
+        }
+        try (channel) {
+            channel.force(true);
+        }
+    }
+
+    private static void writeFully(Path path, byte[] content) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(content);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+    }
+
+    // The data files are bind-mounted and also written by the tests, so a stat decides whether
+    // the resident copy is still the files' content (see isStale for how often that happens).
+    private List<FileStamp> currentStamp() {
+        List<FileStamp> stamp = new ArrayList<>();
+        for (Shard shard : shards) {
+            for (Path file : shard.files()) {
+                stamp.add(FileStamp.of(file));
+            }
+        }
+        return stamp;
+    }
+
+    private record FileStamp(FileTime modified, long size, Object fileKey) {
+
+        static FileStamp of(Path path) {
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                return new FileStamp(attributes.lastModifiedTime(), attributes.size(), attributes.fileKey());
+            } catch (NoSuchFileException e) {
+                return null;
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to read from JSON file", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package com.example.repository;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Collects writes from many request threads and hands them to a single flusher thread in batches,
+ * so one file rewrite or one journal fsync covers every write queued while the previous batch was on disk.
+ *
+ * Durability is one of:
+ *  - sync: the batch is flushed as soon as the flusher picks it up and the caller waits for it
+ *  - batched(ms): the flusher waits up to ms for more writes to join the batch; the caller still waits
+ *  - async: the caller returns as soon as the write is queued
+ */
+class GroupCommitWriter<R> implements AutoCloseable {
+
+    enum Durability { SYNC, BATCHED, ASYNC }
+
+    interface BatchFlusher {
+        /** Drains the writer (see {@link #drain()}) and makes the drained records durable. */
+        void flush() throws Exception;
+    }
+
+    private record Pending<R>(R record, CompletableFuture<Void> done) {}
+
+    private final Durability durability;
+    private final long windowMillis;
+    private final BatchFlusher flusher;
+    private final Thread thread;
+    private final AtomicInteger pending = new AtomicInteger();
+
+    private List<Pending<R>> queue = new ArrayList<>();
+    private List<Pending<R>> inFlight = new ArrayList<>();
+    private boolean running = true;
+
+    GroupCommitWriter(String name, String durability, BatchFlusher flusher) {
+        String setting = durability.trim().toLowerCase();
+        if (setting.equals("sync")) {
+            this.durability = Durability.SYNC;
+            this.windowMillis = 0;
+        } else if (setting.equals("async")) {
+            this.durability = Durability.ASYNC;
+            this.windowMillis = 0;
+        } else if (setting.startsWith("batched")) {
+            this.durability = Durability.BATCHED;
+            String millis = setting.substring("batched".length()).replace("(", "").replace(")", "").replace("ms", "").trim();
+            this.windowMillis = millis.isEmpty() ? 5 : Long.parseLong(millis);
+        } else {
+            throw new IllegalArgumentException("Unknown durability: " + durability);
+        }
+        this.flusher = flusher;
+        this.thread = new Thread(this::run, name + "-group-commit");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /** True while some submitted record has not been flushed yet. */
+    boolean hasPending() {
+        return pending.get() > 0;
+    }
+
+    /**
+     * Queues a record for the next batch. Callers submit while holding the lock that the
+     * flusher takes around {@link #drain()}, so a batch always sees a consistent set of records.
+     */
+    synchronized CompletableFuture<Void> submit(R record) {
+        if (!running) {
+            throw new IllegalStateException("Writer is closed");
+        }
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        queue.add(new Pending<>(record, done));
+        pending.incrementAndGet();
+        notifyAll();
+        return done;
+    }
+
+    /** Blocks until the write is durable, unless running in async mode. */
+    void await(CompletableFuture<Void> done) {
+        if (durability == Durability.ASYNC) {
+            return;
+        }
+        try {
+            done.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof RuntimeException runtime ? runtime : new RuntimeException(cause);
+        }
+    }
+
+    /** Called by the flusher: takes every queued record as the current batch. */
+    synchronized List<R> drain() {
+        List<Pending<R>> batch = queue;
+        queue = new ArrayList<>();
+        inFlight.addAll(batch);
+        List<R> records = new ArrayList<>(batch.size());
+        for (Pending<R> entry : batch) {
+            records.add(entry.record());
+        }
+        return records;
+    }
+
+    private void run() {
+        while (true) {
+            synchronized (this) {
+                while (queue.isEmpty() && running) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        running = false;
+                    }
+                }
+                if (queue.isEmpty() && !running) {
+                    return;
+                }
+            }
+            if (windowMillis > 0 && running) {
+                try {
+                    Thread.sleep(windowMillis);
+                } catch (InterruptedException e) {
+                    // flush what we have and let the loop see running == false
+                }
+            }
+            Throwable failure = null;
+            try {
+                flusher.flush();
+            } catch (Throwable e) {
+                failure = e;
+            }
+            List<Pending<R>> flushed;
+            synchronized (this) {
+                flushed = inFlight;
+                inFlight = new ArrayList<>();
+            }
+            for (Pending<R> entry : flushed) {
+                if (failure == null) {
+                    entry.done().complete(null);
+                } else {
+                    entry.done().completeExceptionally(failure instanceof RuntimeException ? failure
+                            : new RuntimeException("Failed to write to JSON file", failure));
+                }
+            }
+            pending.addAndGet(-flushed.size());
+        }
+    }
+
+    /** Flushes whatever is still queued and stops the flusher thread. */
+    @Override
+    public void close() {
+        synchronized (this) {
+            running = false;
+            notifyAll();
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package com.example.repository;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Stores one row per entity in an embedded H2 database: the entity as JSON, its position in
+ * stored order, and its userId (carts, orders) when it has one. id is the primary key and
+ * user_id and position are indexed, so a change costs one indexed row update instead of a
+ * file rewrite.
+ *
+ * The database lives next to the data path (carts.json becomes carts.mv.db) unless
+ * spring.application.&lt;entity&gt;DatabaseUrl says otherwise. A new table is filled from the
+ * repository's existing data file, so switching engines keeps the data.
+ */
+class H2StorageEngine<T> implements StorageEngine<T> {
+
+    private record Row(UUID id, UUID userId, String body) {}
+
+    private final MainRepository<T> repository;
+    private final String url;
+    private final String table;
+
+    // Guards the connection; only the loader and the writer's thread use it.
+    private final ReentrantLock lock = new ReentrantLock();
+    private Connection connection;
+    private long nextPosition;
+    // Nothing else writes the database, so the data only needs reloading after a failed write.
+    private volatile boolean stale = true;
+
+    H2StorageEngine(MainRepository<T> repository) {
+        this.repository = repository;
+        String dataPath = Path.of(repository.getDataPath()).toAbsolutePath().toString();
+        int dot = dataPath.lastIndexOf('.');
+        String defaultUrl = "jdbc:h2:file:" + (dot > dataPath.lastIndexOf(File.separatorChar) ? dataPath.substring(0, dot) : dataPath);
+        this.url = repository.getSetting("databaseUrl", defaultUrl);
+        this.table = repository.getEntityType().getSimpleName().toLowerCase() + "_entities";
+    }
+
+    @Override
+    public Loaded<T> load() throws IOException {
+        lock.lock();
+        try {
+            LinkedHashMap<UUID, T> entities = new LinkedHashMap<>();
+            try (Statement statement = connection().createStatement();
+                 ResultSet rows = statement.executeQuery("SELECT id, body FROM " + table + " ORDER BY position")) {
+                while (rows.next()) {
+                    entities.put(rows.getObject(1, UUID.class),
+                            repository.objectMapper.readValue(rows.getString(2), repository.getEntityType()));
+                }
+            }
+            return new Loaded<>(entities, null);
+        } catch (SQLException e) {
+            throw new IOException("Failed to read from database", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean isAt(Object version) {
+        return true;
+    }
+
+    @Override
+    public void markLoaded(Object version) {
+        stale = false;
+    }
+
+    @Override
+    public boolean isStale() {
+        return stale;
+    }
+
+    @Override
+    public Write prepare(List<Change<T>> batch, Map<UUID, T> current) {
+        List<Change<Row>> rows = new ArrayList<>();
+        for (Change<T> change : batch) {
+            if (change.op() == Op.REPLACE_ALL) {
+                rows.clear();
+                rows.add(new Change<>(Op.REPLACE_ALL, null, null));
+                for (var entry : current.entrySet()) {
+                    rows.add(new Change<>(Op.INSERT, entry.getKey(), toRow(entry.getKey(), entry.getValue())));
+                }
+            } else {
+                rows.add(new Change<>(change.op(), change.id(), change.entity() == null ? null : toRow(change.id(), change.entity())));
+            }
+        }
+        return () -> commit(rows);
+    }
+
+    private Row toRow(UUID id, T entity) {
+        JsonNode tree = repository.objectMapper.valueToTree(entity);
+        JsonNode userId = tree.get("userId");
+        return new Row(id, userId == null || userId.isNull() ? null : UUID.fromString(userId.asText()), tree.toString());
+    }
+
+    // One transaction per batch. Updates keep the row's position, so the stored order matches
+    // the repository's insertion order.
+    private void commit(List<Change<Row>> changes) throws IOException {
+        lock.lock();
+        try {
+            Connection db = connection();
+            try (PreparedStatement update = db.prepareStatement("UPDATE " + table + " SET user_id = ?, body = ? WHERE id = ?");
+                 PreparedStatement insert = db.prepareStatement("INSERT INTO " + table + " (id, position, user_id, body) VALUES (?, ?, ?, ?)");
+                 PreparedStatement delete = db.prepareStatement("DELETE FROM " + table + " WHERE id = ?");
+                 Statement statement = db.createStatement()) {
+                for (Change<Row> change : changes) {
+                    if (change.op() == Op.REPLACE_ALL) {
+                        statement.executeUpdate("DELETE FROM " + table);
+                        nextPosition = 0;
+                    } else if (change.op() == Op.DELETE) {
+                        delete.setObject(1, change.id());
+                        delete.executeUpdate();
+                    } else {
+                        Row row = change.entity();
+                        update.setObject(1, row.userId());
+                        update.setString(2, row.body());
+                        update.setObject(3, row.id());
+                        if (update.executeUpdate() == 0) {
+                            insert.setObject(1, row.id());
+                            insert.setLong(2, nextPosition++);
+                            insert.setObject(3, row.userId());
+                            insert.setString(4, row.body());
+                            insert.executeUpdate();
+                        }
+                    }
+                }
+                db.commit();
+            } catch (SQLException e) {
+                db.rollback();
+                throw e;
+            }
+        } catch (SQLException e) {
+            stale = true;
+            throw new IOException("Failed to write to database", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Caller must hold the lock.
+    private Connection connection() throws SQLException, IOException {
+        if (connection != null) {
+            return connection;
+        }
+        Connection db = DriverManager.getConnection(url);
+        boolean created = false;
+        try (Statement statement = db.createStatement()) {
+            try (ResultSet tables = db.getMetaData().getTables(null, null, table.toUpperCase(), null)) {
+                created = !tables.next();
+            }
+            statement.execute("CREATE TABLE IF NOT EXISTS " + table
+                    + " (id UUID PRIMARY KEY, position BIGINT NOT NULL, user_id UUID, body VARCHAR NOT NULL)");
+            statement.execute("CREATE INDEX IF NOT EXISTS " + table + "_position ON " + table + " (position)");
+            statement.execute("CREATE INDEX IF NOT EXISTS " + table + "_user_id ON " + table + " (user_id)");
+            try (ResultSet max = statement.executeQuery("SELECT COALESCE(MAX(position) + 1, 0) FROM " + table)) {
+                max.next();
+                nextPosition = max.getLong(1);
+            }
+            db.setAutoCommit(false);
+            connection = db;
+            if (created) {
+                importDataFile();
+            }
+            return db;
+        } catch (SQLException | IOException e) {
+            // Leave no half-imported table behind; the next attempt starts over.
+            connection = null;
+            if (created) {
+                try (Statement statement = db.createStatement()) {
+                    statement.execute("DROP TABLE IF EXISTS " + table);
+                }
+            }
+            db.close();
+            throw e;
+        }
+    }
+
+    private void importDataFile() throws SQLException, IOException {
+        File file = new File(repository.getDataPath());
+        if (!file.exists()) {
+            return;
+        }
+        List<Change<Row>> rows = new ArrayList<>();
+        repository.readSnapshot(file, entity -> {
+            UUID id = repository.getId(entity);
+            rows.add(new Change<>(Op.INSERT, id, toRow(id, entity)));
+        });
+        commit(rows);
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (connection != null) {
+                connection.close();
+                connection = null;
+            }
+        } catch (SQLException e) {
+            throw new IOException("Failed to close database", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,7 @@
+package com.example.repository;
+
+import java.util.UUID;
+
+/** An id tracked by {@link HeavyHitters}: its count is at most error above the true count. */
+public record HeavyHitter(UUID id, long count, long error) {
+}
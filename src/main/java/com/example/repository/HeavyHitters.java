@@ -0,0 +1,164 @@
+package com.example.repository;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Function;
+
+/**
+ * Approximately the most frequent ids across all entities, weighted, e.g. the products sold most
+ * units across all orders, in memory bounded by CAPACITY counters (Space-Saving).
+ *
+ * A tracked id adds to its own counter. An untracked one takes over the smallest counter and
+ * inherits its count as a possible overcount (error), so counts are never too low and are too high
+ * by at most error. Any id whose true count exceeds total / CAPACITY is guaranteed to be tracked.
+ * The counters sit in a min-heap indexed by id, so each change costs a hash lookup and a sift of
+ * at most log2(CAPACITY) = 10 steps. Removals are subtracted from tracked ids only.
+ */
+class HeavyHitters<T> implements EntityIndex<T> {
+
+    static final int CAPACITY = 1024;
+
+    private final Function<T, Map<UUID, Integer>> weights;
+    private final UUID[] ids = new UUID[CAPACITY];
+    private final long[] counts = new long[CAPACITY];
+    private final long[] errors = new long[CAPACITY];
+    private final Map<UUID, Integer> positions = new HashMap<>();
+    private int size;
+    // Every tracked id ranked, kept until the next change; several readers may fill it at once.
+    private volatile List<HeavyHitter> ranked;
+
+    HeavyHitters(Function<T, Map<UUID, Integer>> weights) {
+        this.weights = weights;
+    }
+
+    @Override
+    public void add(UUID id, T entity) {
+        ranked = null;
+        weights.apply(entity).forEach(this::increment);
+    }
+
+    @Override
+    public void remove(UUID id, T entity) {
+        ranked = null;
+        weights.apply(entity).forEach(this::decrement);
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(ids, null);
+        positions.clear();
+        size = 0;
+        ranked = null;
+    }
+
+    private void increment(UUID id, int weight) {
+        if (id == null || weight <= 0) {
+            return;
+        }
+        Integer at = positions.get(id);
+        if (at != null) {
+            counts[at] += weight;
+            siftDown(at);
+        } else if (size < CAPACITY) {
+            ids[size] = id;
+            counts[size] = weight;
+            errors[size] = 0;
+            positions.put(id, size);
+            siftUp(size++);
+        } else {
+            positions.remove(ids[0]);
+            ids[0] = id;
+            errors[0] = counts[0];
+            counts[0] += weight;
+            positions.put(id, 0);
+            siftDown(0);
+        }
+    }
+
+    private void decrement(UUID id, int weight) {
+        Integer at = positions.get(id);
+        if (at == null || weight <= 0) {
+            return;
+        }
+        counts[at] -= weight;
+        errors[at] = Math.min(errors[at], Math.max(counts[at], 0));
+        if (counts[at] > 0) {
+            siftUp(at);
+            return;
+        }
+        // Nothing left to count: drop the counter, filling its place with the last one.
+        positions.remove(id);
+        size--;
+        if (at < size) {
+            UUID last = ids[size];
+            move(size, at);
+            siftUp(at);
+            siftDown(positions.get(last));
+        }
+        ids[size] = null;
+    }
+
+    /** Up to limit tracked ids, highest count first. */
+    List<HeavyHitter> top(int limit) {
+        List<HeavyHitter> all = ranked;
+        if (all == null) {
+            HeavyHitter[] tracked = new HeavyHitter[size];
+            for (int i = 0; i < size; i++) {
+                tracked[i] = new HeavyHitter(ids[i], counts[i], errors[i]);
+            }
+            Arrays.sort(tracked, Comparator.comparingLong(HeavyHitter::count).reversed().thenComparing(HeavyHitter::id));
+            all = List.of(tracked);
+            ranked = all;
+        }
+        return all.subList(0, Math.min(limit, all.size()));
+    }
+
+    private void siftUp(int at) {
+        while (at > 0) {
+            int parent = (at - 1) / 2;
+            if (counts[parent] <= counts[at]) {
+                return;
+            }
+            swap(at, parent);
+            at = parent;
+        }
+    }
+
+    private void siftDown(int at) {
+        while (true) {
+            int smallest = at;
+            for (int child = 2 * at + 1; child <= 2 * at + 2 && child < size; child++) {
+                if (counts[child] < counts[smallest]) {
+                    smallest = child;
+                }
+            }
+            if (smallest == at) {
+                return;
+            }
+            swap(at, smallest);
+            at = smallest;
+        }
+    }
+
+    private void swap(int a, int b) {
+        UUID id = ids[a];
+        long count = counts[a];
+        long error = errors[a];
+        move(b, a);
+        ids[b] = id;
+        counts[b] = count;
+        errors[b] = error;
+        positions.put(id, b);
+    }
+
+    private void move(int from, int to) {
+        ids[to] = ids[from];
+        counts[to] = counts[from];
+        errors[to] = errors[from];
+        positions.put(ids[to], to);
+    }
+}
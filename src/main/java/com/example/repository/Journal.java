@@ -0,0 +1,182 @@
+package com.example.repository;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import com.example.repository.StorageEngine.Op;
+
+/**
+ * Append-only log of entity changes that sits next to a repository's snapshot file.
+ * Each line is one JSON record: {"op":"INSERT|UPDATE|DELETE","id":...,"entity":...}.
+ * The current state is the snapshot with every record replayed on top of it; while a compaction
+ * is running, the sealed records are replayed first and the live ones after them.
+ */
+class Journal implements AutoCloseable {
+
+    private final Path path;
+    private final ObjectMapper objectMapper;
+    private FileChannel channel;
+    private long records;
+    private long bytes;
+
+    Journal(Path path, ObjectMapper objectMapper) {
+        this.path = path;
+        this.objectMapper = objectMapper;
+    }
+
+    Path getPath() {
+        return path;
+    }
+
+    /** Where {@link #seal()} moves the records that are being compacted into a new snapshot. */
+    Path getSealedPath() {
+        return path.resolveSibling(path.getFileName() + ".compacting");
+    }
+
+    long getRecords() {
+        return records;
+    }
+
+    long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Applies every complete record to the given state: those of a sealed segment still being
+     * compacted first, then the live ones. A torn last line left behind by a crash in the middle
+     * of an append is ignored and cut off.
+     */
+    <T> void replay(Map<UUID, T> state, Class<T> type) throws IOException {
+        replaySealed(state, type);
+        records = 0;
+        bytes = 0;
+        if (!Files.exists(path)) {
+            return;
+        }
+        long valid = replay(path, state, type);
+        bytes = Math.min(valid, Files.size(path));
+        if (bytes < Files.size(path)) {
+            channel().truncate(bytes);
+        }
+    }
+
+    /** Applies only the sealed segment, if there is one; this is what a compaction folds into the snapshot. */
+    <T> void replaySealed(Map<UUID, T> state, Class<T> type) throws IOException {
+        if (Files.exists(getSealedPath())) {
+            replay(getSealedPath(), state, type);
+        }
+    }
+
+    // Returns the length of the complete records read.
+    private <T> long replay(Path file, Map<UUID, T> state, Class<T> type) throws IOException {
+        long valid = 0;
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isBlank()) {
+                    valid += line.getBytes(StandardCharsets.UTF_8).length + 1;
+                    continue;
+                }
+                JsonNode record;
+                try {
+                    record = objectMapper.readTree(line);
+                } catch (JsonProcessingException e) {
+                    break;
+                }
+                UUID id = record.hasNonNull("id") ? UUID.fromString(record.get("id").asText()) : null;
+                if (Op.valueOf(record.get("op").asText()) == Op.DELETE) {
+                    state.remove(id);
+                } else {
+                    state.put(id, objectMapper.treeToValue(record.get("entity"), type));
+                }
+                records++;
+                valid += line.getBytes(StandardCharsets.UTF_8).length + 1;
+            }
+        }
+        return valid;
+    }
+
+    /** Serializes one record; done by the writing thread so the record captures the entity as it was saved. */
+    byte[] encode(Op op, UUID id, Object entity) throws IOException {
+        ObjectNode record = objectMapper.createObjectNode();
+        record.put("op", op.name());
+        record.put("id", id == null ? null : id.toString());
+        if (entity != null) {
+            record.set("entity", objectMapper.valueToTree(entity));
+        }
+        return (objectMapper.writeValueAsString(record) + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /** Appends a batch of encoded records and forces them to disk with a single fsync. */
+    void append(List<byte[]> batch) throws IOException {
+        ByteBuffer[] buffers = new ByteBuffer[batch.size()];
+        long length = 0;
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = ByteBuffer.wrap(batch.get(i));
+            length += batch.get(i).length;
+        }
+        FileChannel out = channel();
+        long written = 0;
+        while (written < length) {
+            written += out.write(buffers);
+        }
+        out.force(false);
+        records += batch.size();
+        bytes += length;
+    }
+
+    /** Drops every record; called once their effect has been written into a new snapshot. */
+    void reset() throws IOException {
+        FileChannel out = channel();
+        out.truncate(0);
+        out.force(false);
+        records = 0;
+        bytes = 0;
+    }
+
+    /**
+     * Moves the current records aside to {@link #getSealedPath()} so they can be merged into the
+     * snapshot in the background; later appends start a fresh journal. Returns false if there was
+     * nothing to seal.
+     */
+    boolean seal() throws IOException {
+        close();
+        if (!Files.exists(path)) {
+            return false;
+        }
+        Files.move(path, getSealedPath(), StandardCopyOption.ATOMIC_MOVE);
+        records = 0;
+        bytes = 0;
+        return true;
+    }
+
+    private FileChannel channel() throws IOException {
+        if (channel == null || !channel.isOpen()) {
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+        return channel;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+}
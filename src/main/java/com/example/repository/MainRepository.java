@@ -3,60 +3,901 @@ package com.example.repository;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Primary;
+import org.springframework.core.env.Environment;
 import org.springframework.stereotype.Repository;
 
+import com.example.model.Versioned;
+import com.example.repository.StorageEngine.Change;
+import com.example.repository.StorageEngine.Op;
+import com.fasterxml.jackson.databind.MappingIterator;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
 @Primary
 @Repository
 public abstract class MainRepository<T> {
 
     protected ObjectMapper objectMapper = new ObjectMapper();
-    
+    // objectMapper's configuration on top of each snapshot encoding; JSON uses objectMapper itself.
+    private final Map<SnapshotEncoding, ObjectMapper> snapshotMappers = new ConcurrentHashMap<>();
+
+    @Autowired(required = false)
+    private Environment environment;
+
+    @Autowired(required = false)
+    private MeterRegistry meterRegistry;
+
+    // Resident copy of the stored data keyed by entity id, kept in stored order.
+    // Guarded by cacheLock; entities in here are never handed out or modified.
+    private final LinkedHashMap<UUID, T> cache = new LinkedHashMap<>();
+    private final ReentrantReadWriteLock cacheLock = new ReentrantReadWriteLock();
+    private volatile boolean loaded = false;
+
+    // Persists the cache; see StorageEngine for the available engines.
+    private StorageEngine<T> engine;
+
+    // Read-modify-writes are optimistic (see compareAndUpdate); after a few lost races a writer
+    // falls back to the entity's stripe, taken before cacheLock.
+    private final StripedLocks entityLocks = new StripedLocks(Runtime.getRuntime().availableProcessors() * 4);
+    private static final int CAS_ATTEMPTS_BEFORE_LOCKING = 3;
+
+    // Changes are applied to the cache under cacheLock and queued here; the writer's thread
+    // hands them to the engine in batches.
+    private GroupCommitWriter<Change<T>> writer;
+
+    // Registered by subclasses as fields and maintained on every change to the cache.
+    private final List<EntityIndex<T>> indexes = new ArrayList<>();
+    // Every id in the cache, sorted, so a page can start right after its cursor (see findPage).
+    private final TreeSet<UUID> sortedIds = new TreeSet<>();
+    // Counts changes to the cache; with the epoch it names the cached state (see getChangeVersion).
+    // The epoch keeps a restarted process from reusing the names of an earlier one.
+    private final String epoch = Long.toHexString(ThreadLocalRandom.current().nextLong());
+    private volatile long changeCount = 0;
+    // The highest entity version handed out or loaded; see nextVersion.
+    private final AtomicLong highestVersion = new AtomicLong(-1);
+    // Set when a unit of work changes the cache: no batch is written before the transaction
+    // log holds the units it contains (see UnitOfWork).
+    private volatile CompletableFuture<Void> logBarrier = CompletableFuture.completedFuture(null);
+    // Changes of units of work that are in the transaction log but not yet in the stored data, by
+    // entity id, oldest first. They are committed: if their write fails, the next reload puts them
+    // back over the stored data and writes them again, instead of leaving the cache (and every
+    // later write) on the older stored entity. Guarded by cacheLock.
+    private final Map<UUID, List<Unstored<T>>> unstored = new HashMap<>();
+
+    // stored completes once the entity, or a later change of it, is in the stored data.
+    private record Unstored<T>(UUID id, T entity, CompletableFuture<Void> logged, CompletableFuture<Void> stored) {}
+
     protected abstract String getDataPath();
     protected abstract Class<T[]> getArrayType();
+    protected abstract UUID getId(T entity);
 
     public MainRepository(){
 
     }
-    public ArrayList<T> findAll() {
+
+    /** Registers an index on a single key per entity, e.g. addIndex(Cart::getUserId). Call from a field initializer. */
+    protected SecondaryIndex<T> addIndex(Function<T, ?> key) {
+        SecondaryIndex<T> index = SecondaryIndex.single(key);
+        indexes.add(index);
+        return index;
+    }
+
+    /** Registers an index where one entity can carry several keys, e.g. every product id in an order. */
+    protected SecondaryIndex<T> addMultiIndex(Function<T, ? extends Collection<?>> keys) {
+        SecondaryIndex<T> index = new SecondaryIndex<>(keys);
+        indexes.add(index);
+        return index;
+    }
+
+    /** Like {@link #addIndex}, with the keys kept sorted for range queries (see {@link SecondaryIndex#range}). */
+    protected SecondaryIndex<T> addSortedIndex(Function<T, ?> key) {
+        SecondaryIndex<T> index = SecondaryIndex.single(key, true);
+        indexes.add(index);
+        return index;
+    }
+
+    /** Like {@link #addMultiIndex}, with the keys kept sorted for range and prefix queries. */
+    protected SecondaryIndex<T> addSortedMultiIndex(Function<T, ? extends Collection<?>> keys) {
+        SecondaryIndex<T> index = new SecondaryIndex<>(keys, true);
+        indexes.add(index);
+        return index;
+    }
+
+    /** Registers an index of another kind, e.g. a {@link PrefixTrie}. Call from a field initializer. */
+    protected <I extends EntityIndex<T>> I addCustomIndex(I index) {
+        indexes.add(index);
+        return index;
+    }
+
+    /** Picks the engine named by the storageEngine setting; override to plug in another one. */
+    protected StorageEngine<T> createStorageEngine() {
+        String name = getSetting("storageEngine", "file");
+        if (name.equalsIgnoreCase("file")) {
+            return new FileStorageEngine<>(this, meterRegistry);
+        }
+        if (name.equalsIgnoreCase("h2")) {
+            return new H2StorageEngine<>(this);
+        }
+        throw new IllegalArgumentException("Unknown storage engine: " + name);
+    }
+
+    @PostConstruct
+    public void loadCache() {
+        cacheLock.writeLock().lock();
         try {
-            File file = new File(getDataPath());
-            if (!file.exists()) {
-                return new ArrayList<>();
+            if (engine == null) {
+                engine = createStorageEngine();
+            }
+            if (writer == null) {
+                writer = new GroupCommitWriter<>(getEntityType().getSimpleName().toLowerCase(),
+                        getSetting("durability", "sync"), this::flushBatch);
             }
-            T[] array = objectMapper.readValue(file, getArrayType()); // Deserialize to array first
-            return new ArrayList<>(Arrays.asList(array));
-            // return objectMapper.readValue(file, new TypeReference<ArrayList<T>>(){});
+        } finally {
+            cacheLock.writeLock().unlock();
+        }
+        reload();
+        try {
+            engine.open(this::refreshIfStale);
         } catch (IOException e) {
-            throw new RuntimeException("Failed to read from JSON file", e);
+            throw new RuntimeException("Failed to watch JSON file", e);
         }
     }
 
-    public void saveAll(ArrayList<T> data) {
+    @PreDestroy
+    public void close() {
+        if (writer != null) {
+            writer.close();
+        }
         try {
-            objectMapper.writeValue(new File(getDataPath()), data);
+            if (engine != null) {
+                engine.close();
+            }
         } catch (IOException e) {
-            throw new RuntimeException("Failed to write to JSON file", e);
+            throw new RuntimeException("Failed to close data files", e);
+        }
+    }
+
+    public ArrayList<T> findAll() {
+        refreshIfStale();
+        cacheLock.readLock().lock();
+        try {
+            ArrayList<T> all = new ArrayList<>(cache.size());
+            for (T entity : cache.values()) {
+                all.add(copy(entity));
+            }
+            return all;
+        } finally {
+            cacheLock.readLock().unlock();
+        }
+    }
+
+    public T findById(UUID id) {
+        refreshIfStale();
+        cacheLock.readLock().lock();
+        try {
+            return copy(cache.get(id));
+        } finally {
+            cacheLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Names this run of the repository. Entity versions only ever increase within one run; after a
+     * restart, an entity deleted and created again may get a version it had in an earlier run, so
+     * anything that must tell those apart (like an ETag) is qualified with the epoch.
+     */
+    public String getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Names the current state of the whole repository: it changes whenever any entity is added,
+     * changed or removed (including through a reload) and never comes back, so it can be used as
+     * a strong ETag for anything derived from the full data. Costs no copy and no parsing.
+     */
+    public String getChangeVersion() {
+        refreshIfStale();
+        return epoch + "-" + changeCount;
+    }
+
+    /** The stored version of the entity, read without copying it, or null if there is none. */
+    public Long findVersion(UUID id) {
+        refreshIfStale();
+        cacheLock.readLock().lock();
+        try {
+            T entity = cache.get(id);
+            return entity == null ? null : versionOf(entity);
+        } finally {
+            cacheLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Applies reader to the resident entity, or to null if there is none, without copying it; for
+     * reading a small part of a large entity. The reader must not modify the entity or return any
+     * mutable part of it.
+     */
+    protected <R> R readById(UUID id, Function<? super T, R> reader) {
+        refreshIfStale();
+        cacheLock.readLock().lock();
+        try {
+            return reader.apply(cache.get(id));
+        } finally {
+            cacheLock.readLock().unlock();
+        }
+    }
+
+    /** Copies of the entities with the given ids, in the order asked for; unknown ids are skipped. */
+    public ArrayList<T> findAllById(Collection<UUID> ids) {
+        refreshIfStale();
+        cacheLock.readLock().lock();
+        try {
+            ArrayList<T> found = new ArrayList<>(ids.size());
+            for (UUID id : ids) {
+                T entity = cache.get(id);
+                if (entity != null) {
+                    found.add(copy(entity));
+                }
+            }
+            return found;
+        } finally {
+            cacheLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Up to limit entities in id order, starting right after the given id (or from the first one
+     * if after is null). Seeking the cursor in the sorted id set costs O(log n), so a page costs
+     * O(limit) however deep into the data it is.
+     */
+    public Page<T> findPage(UUID after, int limit) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("Page limit must be positive");
+        }
+        refreshIfStale();
+        cacheLock.readLock().lock();
+        try {
+            NavigableSet<UUID> rest = after == null ? sortedIds : sortedIds.tailSet(after, false);
+            Iterator<UUID> ids = rest.iterator();
+            List<T> items = new ArrayList<>();
+            UUID last = null;
+            while (items.size() < limit && ids.hasNext()) {
+                last = ids.next();
+                items.add(copy(cache.get(last)));
+            }
+            return new Page<>(items, ids.hasNext() ? last : null);
+        } finally {
+            cacheLock.readLock().unlock();
         }
     }
 
+    /** Copies of every entity the index maps the key to, in insertion order. */
+    protected ArrayList<T> findAllBy(SecondaryIndex<T> index, Object key) {
+        refreshIfStale();
+        cacheLock.readLock().lock();
+        try {
+            ArrayList<T> found = new ArrayList<>();
+            for (UUID id : index.get(key)) {
+                found.add(copy(cache.get(id)));
+            }
+            return found;
+        } finally {
+            cacheLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Copies of at most limit entities among the given ids that pass the filter: in the ids' order,
+     * stopping as soon as limit are found, or sorted by order if one is given. The ids are computed
+     * under the read lock, so they can come from the indexes; ids, filter and order see the
+     * resident entities and must not modify them.
+     */
+    protected ArrayList<T> findAllBy(Supplier<? extends Iterable<UUID>> ids, Predicate<? super T> filter,
+                                     Comparator<? super T> order, int limit) {
+        refreshIfStale();
+        cacheLock.readLock().lock();
+        try {
+            List<T> matches = new ArrayList<>();
+            for (UUID id : ids.get()) {
+                T entity = cache.get(id);
+                if (entity != null && filter.test(entity)) {
+                    matches.add(entity);
+                    if (order == null && matches.size() == limit) {
+                        break;
+                    }
+                }
+            }
+            if (order != null) {
+                matches.sort(order);
+            }
+            ArrayList<T> found = new ArrayList<>(Math.min(limit, matches.size()));
+            for (T entity : matches.subList(0, Math.min(limit, matches.size()))) {
+                found.add(copy(entity));
+            }
+            return found;
+        } finally {
+            cacheLock.readLock().unlock();
+        }
+    }
+
+    /** Runs a read of the indexes under the read lock; the query must not modify them. */
+    protected <R> R queryIndexes(Supplier<R> query) {
+        refreshIfStale();
+        cacheLock.readLock().lock();
+        try {
+            return query.get();
+        } finally {
+            cacheLock.readLock().unlock();
+        }
+    }
+
+    protected T findFirstBy(SecondaryIndex<T> index, Object key) {
+        refreshIfStale();
+        cacheLock.readLock().lock();
+        try {
+            for (UUID id : index.get(key)) {
+                return copy(cache.get(id));
+            }
+            return null;
+        } finally {
+            cacheLock.readLock().unlock();
+        }
+    }
+
+    protected boolean existsBy(SecondaryIndex<T> index, Object key) {
+        refreshIfStale();
+        cacheLock.readLock().lock();
+        try {
+            return !index.get(key).isEmpty();
+        } finally {
+            cacheLock.readLock().unlock();
+        }
+    }
+
+    public boolean existsById(UUID id) {
+        refreshIfStale();
+        cacheLock.readLock().lock();
+        try {
+            return cache.containsKey(id);
+        } finally {
+            cacheLock.readLock().unlock();
+        }
+    }
+
+    public void saveAll(ArrayList<T> data) {
+        List<T> stored = new ArrayList<>(data.size());
+        for (T entity : data) {
+            stored.add(copy(entity));
+        }
+        CompletableFuture<Void> done;
+        cacheLock.writeLock().lock();
+        try {
+            LinkedHashMap<UUID, T> previous = new LinkedHashMap<>(cache);
+            cache.clear();
+            indexes.forEach(EntityIndex::clear);
+            sortedIds.clear();
+            changeCount++;
+            for (T entity : stored) {
+                setVersion(entity, nextVersion(previous.get(getId(entity))));
+                reindex(getId(entity), cache.put(getId(entity), entity), entity);
+            }
+            done = writer.submit(new Change<>(Op.REPLACE_ALL, null, null));
+        } finally {
+            cacheLock.writeLock().unlock();
+        }
+        writer.await(done);
+    }
+
     public void save(T data){
-        ArrayList<T> allData = findAll();
-        allData.add(data);
-        saveAll(allData);
+        write(Op.INSERT, data);
+    }
+
+    public void update(T data) {
+        write(Op.UPDATE, data);
+    }
+
+    /**
+     * Blind writes of many entities, like {@link #save} for each of them, except that they go into
+     * the cache under one lock and reach the storage engine as one batch: a bulk import costs one
+     * flush instead of one per entity.
+     */
+    public void saveBatch(List<T> data) {
+        refreshIfStale();
+        List<T> stored = new ArrayList<>(data.size());
+        for (T entity : data) {
+            stored.add(copy(entity));
+        }
+        CompletableFuture<Void> done = null;
+        cacheLock.writeLock().lock();
+        try {
+            for (int i = 0; i < stored.size(); i++) {
+                UUID id = getId(stored.get(i));
+                long version = nextVersion(cache.get(id));
+                setVersion(stored.get(i), version);
+                setVersion(data.get(i), version);
+                reindex(id, cache.put(id, stored.get(i)), stored.get(i));
+                done = writer.submit(new Change<>(Op.INSERT, id, stored.get(i)));
+            }
+        } finally {
+            cacheLock.writeLock().unlock();
+        }
+        // Everything was queued under the lock the flusher drains under, so it all lands in one
+        // batch and the last change is durable only once the others are.
+        if (done != null) {
+            writer.await(done);
+        }
     }
 
+    public void deleteById(UUID id) {
+        refreshIfStale();
+        CompletableFuture<Void> done;
+        cacheLock.writeLock().lock();
+        try {
+            if (!cache.containsKey(id)) {
+                return;
+            }
+            reindex(id, cache.remove(id), null);
+            done = writer.submit(new Change<>(Op.DELETE, id, null));
+        } finally {
+            cacheLock.writeLock().unlock();
+        }
+        writer.await(done);
+    }
 
+    /** Deletes every listed entity in one batch, as {@link #saveBatch} does; returns how many existed. */
+    public int deleteBatch(Collection<UUID> ids) {
+        refreshIfStale();
+        int deleted = 0;
+        CompletableFuture<Void> done = null;
+        cacheLock.writeLock().lock();
+        try {
+            for (UUID id : ids) {
+                if (!cache.containsKey(id)) {
+                    continue;
+                }
+                reindex(id, cache.remove(id), null);
+                done = writer.submit(new Change<>(Op.DELETE, id, null));
+                deleted++;
+            }
+        } finally {
+            cacheLock.writeLock().unlock();
+        }
+        if (done != null) {
+            writer.await(done);
+        }
+        return deleted;
+    }
+
+    /**
+     * Read-modify-write of one entity that never loses a concurrent change: see
+     * {@link #compareAndUpdate} with no expected version.
+     */
+    protected T modify(UUID id, Consumer<T> change) {
+        return compareAndUpdate(id, null, change);
+    }
+
+    /**
+     * Applies the mutator to a copy of the stored entity without holding any lock, then stores
+     * the result only if nobody changed the entity in the meantime; otherwise starts over from
+     * the newer version. Every stored change installs a new instance, so comparing instances
+     * cannot mistake a changed entity for an unchanged one.
+     *
+     * If expectedVersion is given and the stored entity has another version, nothing is changed
+     * and a {@link VersionConflictException} is thrown: the caller's copy is out of date.
+     * Returns the stored copy with its new version, or null (without calling the mutator) if
+     * there is no entity with that id.
+     */
+    protected T compareAndUpdate(UUID id, Long expectedVersion, Consumer<T> mutator) {
+        for (int attempt = 1; ; attempt++) {
+            // Writers that keep losing the race on a hot entity queue on its stripe instead of spinning.
+            ReentrantLock entityLock = attempt > CAS_ATTEMPTS_BEFORE_LOCKING ? entityLocks.get(id) : null;
+            if (entityLock != null) {
+                entityLock.lock();
+            }
+            try {
+                refreshIfStale();
+                T resident;
+                cacheLock.readLock().lock();
+                try {
+                    resident = cache.get(id);
+                } finally {
+                    cacheLock.readLock().unlock();
+                }
+                if (resident == null) {
+                    return null;
+                }
+                if (expectedVersion != null && versionOf(resident) != expectedVersion) {
+                    throw new VersionConflictException(id, expectedVersion, versionOf(resident));
+                }
+                T updated = copy(resident);
+                mutator.accept(updated);
+                setVersion(updated, nextVersion(resident));
+                T stored = copy(updated);
+                CompletableFuture<Void> done;
+                cacheLock.writeLock().lock();
+                try {
+                    if (cache.get(id) != resident) {
+                        continue;
+                    }
+                    reindex(id, cache.put(id, stored), stored);
+                    done = writer.submit(new Change<>(Op.UPDATE, id, stored));
+                } finally {
+                    cacheLock.writeLock().unlock();
+                }
+                writer.await(done);
+                return updated;
+            } finally {
+                if (entityLock != null) {
+                    entityLock.unlock();
+                }
+            }
+        }
+    }
 
     public void overrideData(ArrayList<T> data) {
         saveAll(data);
     }
 
-    
+    @SuppressWarnings("unchecked")
+    protected Class<T> getEntityType() {
+        return (Class<T>) getArrayType().getComponentType();
+    }
+
+    protected T copy(T entity) {
+        return entity == null ? null : objectMapper.convertValue(entity, getEntityType());
+    }
+
+    /**
+     * Reads a storage setting for this repository: spring.application.&lt;entity&gt;&lt;Key&gt;
+     * (e.g. cartStorageMode) first, then the shared spring.application.&lt;key&gt;.
+     */
+    protected String getSetting(String key, String defaultValue) {
+        if (environment == null) {
+            return defaultValue;
+        }
+        String entity = getEntityType().getSimpleName().toLowerCase();
+        String shared = environment.getProperty("spring.application." + key, defaultValue);
+        return environment.getProperty("spring.application." + entity + Character.toUpperCase(key.charAt(0)) + key.substring(1), shared);
+    }
+
+    // A blind write: last writer wins, and the entity's version moves past whatever it replaced.
+    // Only the swap into the cache happens under the cache lock; the copy is made before,
+    // so writes to different entities overlap.
+    private void write(Op op, T data) {
+        refreshIfStale();
+        T stored = copy(data);
+        CompletableFuture<Void> done;
+        cacheLock.writeLock().lock();
+        try {
+            long version = nextVersion(cache.get(getId(data)));
+            setVersion(stored, version);
+            setVersion(data, version);
+            reindex(getId(data), cache.put(getId(data), stored), stored);
+            done = writer.submit(new Change<>(op, getId(data), stored));
+        } finally {
+            cacheLock.writeLock().unlock();
+        }
+        // Wait outside the cache lock: the flusher needs it to take its batch.
+        writer.await(done);
+    }
+
+    // ---- Units of work: see UnitOfWork and TransactionLog ----
+
+    String getName() {
+        return getEntityType().getSimpleName().toLowerCase();
+    }
+
+    // Through a method rather than the field: other beans see the repository through a proxy.
+    ObjectMapper getObjectMapper() {
+        return objectMapper;
+    }
+
+    /** The resident entity or null; it must not be modified. */
+    T resident(UUID id) {
+        refreshIfStale();
+        cacheLock.readLock().lock();
+        try {
+            return cache.get(id);
+        } finally {
+            cacheLock.readLock().unlock();
+        }
+    }
+
+    ReentrantReadWriteLock.WriteLock writeLock() {
+        return cacheLock.writeLock();
+    }
+
+    /** Caller must hold the write lock. */
+    boolean isResident(UUID id, T expected) {
+        return cache.get(id) == expected;
+    }
+
+    /**
+     * Stores a change of a unit of work; its batch is written only once logged completes. The
+     * future completes once the change is in the stored data, however many writes that takes.
+     * Caller must hold the write lock.
+     */
+    CompletableFuture<Void> applyLogged(Op op, UUID id, T stored, CompletableFuture<Void> logged) {
+        reindex(id, cache.put(id, stored), stored);
+        logBarrier = logged;
+        Unstored<T> change = new Unstored<>(id, stored, logged, new CompletableFuture<>());
+        unstored.computeIfAbsent(id, key -> new ArrayList<>()).add(change);
+        writer.submit(new Change<>(op, id, stored));
+        return change.stored();
+    }
+
+    /**
+     * Stores an entity found in the transaction log unless the resident one is at least as new,
+     * i.e. the change already reached the stored data or was overwritten since.
+     */
+    CompletableFuture<Void> recover(T logged) {
+        UUID id = getId(logged);
+        refreshIfStale();
+        cacheLock.writeLock().lock();
+        try {
+            T resident = cache.get(id);
+            if (resident != null && versionOf(resident) >= versionOf(logged)) {
+                return CompletableFuture.completedFuture(null);
+            }
+            highestVersion.accumulateAndGet(versionOf(logged), Math::max);
+            reindex(id, cache.put(id, logged), logged);
+            return writer.submit(new Change<>(resident == null ? Op.INSERT : Op.UPDATE, id, logged));
+        } finally {
+            cacheLock.writeLock().unlock();
+        }
+    }
+
+    // A new entity continues past every version handed out so far, so one that is deleted and
+    // created again never gets back a version it had before.
+    long nextVersion(Object previous) {
+        long next = previous == null ? highestVersion.get() + 1 : versionOf(previous) + 1;
+        highestVersion.accumulateAndGet(next, Math::max);
+        return next;
+    }
+
+    static long versionOf(Object entity) {
+        return entity instanceof Versioned versioned ? versioned.getVersion() : 0;
+    }
+
+    static void setVersion(Object entity, long version) {
+        if (entity instanceof Versioned versioned) {
+            versioned.setVersion(version);
+        }
+    }
+
+    /**
+     * Reads a snapshot file of the file engine, in whichever {@link SnapshotEncoding} it is in;
+     * repositories with their own on-disk format override this and {@link #encodeSnapshot}.
+     */
+    protected void readSnapshot(File file, Consumer<T> sink) throws IOException {
+        // Token-streams the array so only one element is being bound at a time,
+        // instead of materializing a T[] and then a list copy of it.
+        ObjectMapper mapper = snapshotMapper(SnapshotEncoding.detect(file.toPath()));
+        try (MappingIterator<T> entities = mapper.readerFor(getEntityType()).readValues(file)) {
+            while (entities.hasNextValue()) {
+                sink.accept(entities.nextValue());
+            }
+        }
+    }
+
+    protected byte[] encodeSnapshot(Collection<T> entities) throws IOException {
+        return snapshotMapper(SnapshotEncoding.of(getSetting("encoding", "json"))).writeValueAsBytes(entities);
+    }
 
+    private ObjectMapper snapshotMapper(SnapshotEncoding encoding) {
+        if (encoding == SnapshotEncoding.JSON) {
+            return objectMapper;
+        }
+        return snapshotMappers.computeIfAbsent(encoding, e -> objectMapper.copyWith(e.factory()));
+    }
+
+    // Moves the entity's index entries from its previous to its new version; either may be null.
+    // Caller must hold the write lock.
+    private void reindex(UUID id, T before, T after) {
+        if (before == after) {
+            return;
+        }
+        changeCount++;
+        if (before == null) {
+            sortedIds.add(id);
+        } else if (after == null) {
+            sortedIds.remove(id);
+        }
+        for (EntityIndex<T> index : indexes) {
+            if (before != null) {
+                index.remove(id, before);
+            }
+            if (after != null) {
+                index.add(id, after);
+            }
+        }
+    }
+
+    // Runs on the writer's thread: the engine encodes the batch against the cache it belongs to,
+    // then writes it out once the cache lock is released.
+    private void flushBatch() throws IOException {
+        StorageEngine.Write write;
+        CompletableFuture<Void> logged;
+        // Unit-of-work changes this batch stores: their own, or a later change of the same entity.
+        List<Unstored<T>> covered = new ArrayList<>();
+        cacheLock.readLock().lock();
+        try {
+            List<Change<T>> batch = writer.drain();
+            if (batch.isEmpty()) {
+                return;
+            }
+            write = engine.prepare(batch, Collections.unmodifiableMap(cache));
+            logged = logBarrier;
+            for (Change<T> change : batch) {
+                if (change.op() == Op.REPLACE_ALL) {
+                    unstored.values().forEach(covered::addAll);
+                } else {
+                    covered.addAll(unstored.getOrDefault(change.id(), List.of()));
+                }
+            }
+        } catch (IOException e) {
+            loaded = false;
+            throw e;
+        } finally {
+            cacheLock.readLock().unlock();
+        }
+        try {
+            // The transaction log is written in order, so waiting for the latest unit of work
+            // in the cache covers every earlier one. If it could not be logged, the batch is
+            // dropped like any failed write and the cache goes back to the stored data.
+            try {
+                logged.join();
+            } catch (CompletionException e) {
+                throw new IOException("Failed to write transaction log", e.getCause());
+            }
+            write.commit();
+        } catch (IOException e) {
+            // The resident copy is now ahead of the stored data; drop it so the next read goes back to it.
+            loaded = false;
+            throw e;
+        }
+        cacheLock.writeLock().lock();
+        try {
+            for (Unstored<T> change : covered) {
+                List<Unstored<T>> pending = unstored.get(change.id());
+                if (pending != null && pending.remove(change) && pending.isEmpty()) {
+                    unstored.remove(change.id());
+                }
+            }
+        } finally {
+            cacheLock.writeLock().unlock();
+        }
+        covered.forEach(change -> change.stored().complete(null));
+    }
+
+    // The stored data may be edited from outside (the JSON files are bind-mounted and also
+    // written by the tests), so every access asks the engine whether it is still what was loaded;
+    // engines answer that cheaply (see FileStorageEngine#isStale). Caller must not hold the read lock.
+    private void refreshIfStale() {
+        // While our own writes are queued or being flushed the stored data is expected to lag
+        // behind the cache, so it is only compared once the writer is idle.
+        if (loaded && (writer.hasPending() || !engine.isStale())) {
+            return;
+        }
+        reload();
+    }
+
+    // Reads the stored data without holding the cache lock, then swaps the result in, keeping the
+    // entities that did not change. Readers see either the old or the new state, never a mix.
+    private void reload() {
+        while (true) {
+            StorageEngine.Loaded<T> next;
+            try {
+                next = engine.load();
+            } catch (IOException e) {
+                loaded = false;
+                throw new RuntimeException("Failed to read from JSON file", e);
+            }
+            cacheLock.writeLock().lock();
+            try {
+                if (loaded && (writer.hasPending() || !engine.isStale())) {
+                    return;
+                }
+                if (!engine.isAt(next.version())) {
+                    continue;
+                }
+                swapIn(next.entities());
+                engine.markLoaded(next.version());
+                loaded = true;
+                return;
+            } finally {
+                cacheLock.writeLock().unlock();
+            }
+        }
+    }
+
+    // Replaces the cache with the given state in its order, reusing the resident instance of
+    // every entity whose content is unchanged. Caller must hold the write lock.
+    private void swapIn(LinkedHashMap<UUID, T> next) {
+        List<Change<T>> rewrites = restoreUnstored(next);
+        LinkedHashMap<UUID, T> merged = new LinkedHashMap<>();
+        for (var entry : next.entrySet()) {
+            T incoming = entry.getValue();
+            highestVersion.accumulateAndGet(versionOf(incoming), Math::max);
+            T resident = cache.remove(entry.getKey());
+            T kept = resident != null && sameContent(resident, incoming) ? resident : incoming;
+            if (kept == incoming && resident != null && versionOf(incoming) <= versionOf(resident)) {
+                // Edited outside the application without a new version: give it one, so a
+                // version (or ETag) a client holds never names two different contents.
+                setVersion(incoming, nextVersion(resident));
+            }
+            reindex(entry.getKey(), resident, kept);
+            merged.put(entry.getKey(), kept);
+        }
+        // Whatever is left was removed from the files.
+        for (var entry : cache.entrySet()) {
+            reindex(entry.getKey(), entry.getValue(), null);
+        }
+        cache.clear();
+        cache.putAll(merged);
+        rewrites.forEach(writer::submit);
+    }
+
+    // Puts the latest committed change of every entity the stored data does not hold yet into
+    // next, returning the writes that store them. Changes the stored data already holds (at their
+    // version or a later one) are settled, and those of units that were never logged are dropped.
+    // Caller must hold the write lock.
+    private List<Change<T>> restoreUnstored(LinkedHashMap<UUID, T> next) {
+        List<Change<T>> rewrites = new ArrayList<>();
+        for (Iterator<List<Unstored<T>>> entries = unstored.values().iterator(); entries.hasNext(); ) {
+            List<Unstored<T>> pending = entries.next();
+            T incoming = next.get(pending.get(0).id());
+            for (Iterator<Unstored<T>> changes = pending.iterator(); changes.hasNext(); ) {
+                Unstored<T> change = changes.next();
+                if (change.logged().isCompletedExceptionally()) {
+                    changes.remove();
+                    change.stored().completeExceptionally(new IllegalStateException("Unit of work was not logged"));
+                } else if (incoming != null && versionOf(incoming) >= versionOf(change.entity())) {
+                    changes.remove();
+                    change.stored().complete(null);
+                }
+            }
+            if (pending.isEmpty()) {
+                entries.remove();
+                continue;
+            }
+            Unstored<T> latest = pending.get(pending.size() - 1);
+            next.put(latest.id(), latest.entity());
+            rewrites.add(new Change<>(incoming == null ? Op.INSERT : Op.UPDATE, latest.id(), latest.entity()));
+        }
+        return rewrites;
+    }
+
+    private boolean sameContent(T a, T b) {
+        return objectMapper.valueToTree(a).equals(objectMapper.valueToTree(b));
+    }
 
 }
@@ -1,10 +1,18 @@
 package com.example.repository;
 
 import com.example.model.Order;
+import com.example.model.OrderLine;
+import com.example.model.Product;
+import com.fasterxml.jackson.annotation.JsonProperty;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Repository;
 
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 @Repository
@@ -23,7 +31,25 @@ public class OrderRepository extends MainRepository<Order> {
         return Order[].class;
     }
 
+    @Override
+    protected UUID getId(Order order) {
+        return order.getId();
+    }
+
+    private final SecondaryIndex<Order> userIdIndex = addIndex(Order::getUserId);
+    private final SecondaryIndex<Order> productIdIndex = addMultiIndex(order -> order.getLines().stream().map(OrderLine::getProductId).toList());
+    private final TimeSeriesIndex<Order> revenue = addCustomIndex(new TimeSeriesIndex<>(Order::getCreatedAt, Order::getTotalPrice));
+    private final HeavyHitters<Order> unitsSold = addCustomIndex(new HeavyHitters<>(OrderRepository::quantities));
+
+    // Orders are stored as their lines only; the products are derived from them again on read.
+    // Users embed their orders, so UserRepository registers this too.
+    abstract static class StoredOrder {
+        @JsonProperty(access = JsonProperty.Access.WRITE_ONLY)
+        abstract List<Product> getProducts();
+    }
+
     public OrderRepository() {
+        objectMapper.addMixIn(Order.class, StoredOrder.class);
     }
 
     public Order addOrder(Order order){
@@ -35,30 +61,46 @@ public class OrderRepository extends MainRepository<Order> {
         return this.findAll();
     }
 
+    public Page<Order> getOrderPage(UUID after, int limit){
+        return this.findPage(after, limit);
+    }
+
     public Order getOrderById(UUID orderId){
-        for (Order order : this.getOrders()) {
-            if (order.getId() != null && order.getId().equals(orderId)) {
-                return order;
-            }
+        return this.findById(orderId);
+    }
+
+    public ArrayList<Order> getOrdersByUserId(UUID userId){
+        return this.findAllBy(userIdIndex, userId);
+    }
+
+    public boolean isProductInOrders(UUID productId){
+        return this.existsBy(productIdIndex, productId);
+    }
+
+    // Order count and revenue per minute, hour or day between from and to, read from the rollup.
+    public List<TimeBucket> getRevenue(Instant from, Instant to, ChronoUnit unit){
+        return this.queryIndexes(() -> revenue.query(from, to, unit));
+    }
+
+    // The products sold most units across all orders, with how far each count may be too high.
+    public List<HeavyHitter> getBestSellers(int limit){
+        return this.queryIndexes(() -> unitsSold.top(limit));
+    }
+
+    private static Map<UUID, Integer> quantities(Order order){
+        Map<UUID, Integer> quantities = new HashMap<>();
+        for (OrderLine line : order.getLines()) {
+            quantities.merge(line.getProductId(), line.getQuantity(), Integer::sum);
         }
-        return null;
+        return quantities;
     }
 
     public void deleteOrderById(UUID orderId){
-        ArrayList<Order> orders = this.getOrders();
-        for (Order order : orders) {
-            if (order.getId() != null && order.getId().equals(orderId)) {
-                orders.remove(order);
-                break;
-            }
-        }
-        this.overrideData(orders);
+        this.deleteById(orderId);
     }
 
     public void clearOrders() {
-        ArrayList<Order> orders = this.findAll();
-        orders.clear();
-        this.overrideData(orders);
+        this.overrideData(new ArrayList<>());
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,13 @@
+package com.example.repository;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * One page of a listing, in id order. nextCursor is the id of the last item, to be passed back
+ * as after= for the next page, or null when nothing followed this page when it was read.
+ * Since the cursor is an id rather than an offset, entities inserted or deleted in between
+ * never shift the following pages.
+ */
+public record Page<T>(List<T> items, UUID nextCursor) {
+}
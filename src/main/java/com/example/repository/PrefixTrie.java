@@ -0,0 +1,225 @@
+package com.example.repository;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Function;
+
+/**
+ * Completes a prefix to the best few distinct names (e.g. product names), case-insensitively.
+ * Shorter names rank first, so the closest completions come before long variations of them, then
+ * names in alphabetical order.
+ *
+ * Every node keeps its subtree's top TOP_K names, so a suggestion is a walk down at most
+ * MAX_DEPTH nodes plus a copy of that list. Memory is bounded by filing each name under at most
+ * its first MAX_DEPTH characters: deeper prefixes are answered by filtering the names filed at
+ * that depth. Children are kept in sorted arrays rather than maps. Changes update only the nodes
+ * on the name's path, refilling a node's list from its children when one of its names goes away.
+ */
+class PrefixTrie<T> implements EntityIndex<T> {
+
+    static final int TOP_K = 10;
+    private static final int MAX_DEPTH = 12;
+
+    private static final Comparator<String> RANK = Comparator.comparingInt(String::length).thenComparing(Comparator.naturalOrder());
+    private static final char[] NO_LABELS = new char[0];
+    private static final String[] NO_NAMES = new String[0];
+
+    private static final class Node {
+        char[] labels = NO_LABELS;
+        Node[] children = new Node[0];
+        // Names ending here or, at MAX_DEPTH, continuing past it; lower case.
+        String[] filed = NO_NAMES;
+        // The best TOP_K names of the whole subtree, best first; lower case.
+        String[] top = NO_NAMES;
+
+        Node child(char label) {
+            int at = Arrays.binarySearch(labels, label);
+            return at < 0 ? null : children[at];
+        }
+    }
+
+    private final Function<T, String> key;
+    private Node root = new Node();
+    // Lower-case name to how many entities carry it and how it is shown.
+    private final Map<String, Integer> counts = new HashMap<>();
+    private final Map<String, String> shown = new HashMap<>();
+
+    PrefixTrie(Function<T, String> key) {
+        this.key = key;
+    }
+
+    @Override
+    public void add(UUID id, T entity) {
+        String name = key.apply(entity);
+        if (name == null || name.isBlank()) {
+            return;
+        }
+        String lower = name.toLowerCase(Locale.ROOT);
+        if (counts.merge(lower, 1, Integer::sum) > 1) {
+            return;
+        }
+        shown.put(lower, name);
+        Node node = root;
+        offer(node, lower);
+        for (int depth = 0; depth < Math.min(lower.length(), MAX_DEPTH); depth++) {
+            Node next = node.child(lower.charAt(depth));
+            if (next == null) {
+                next = insertChild(node, lower.charAt(depth));
+            }
+            node = next;
+            offer(node, lower);
+        }
+        node.filed = with(node.filed, lower);
+    }
+
+    @Override
+    public void remove(UUID id, T entity) {
+        String name = key.apply(entity);
+        if (name == null || name.isBlank()) {
+            return;
+        }
+        String lower = name.toLowerCase(Locale.ROOT);
+        Integer count = counts.get(lower);
+        if (count == null) {
+            return;
+        }
+        if (count > 1) {
+            counts.put(lower, count - 1);
+            return;
+        }
+        counts.remove(lower);
+        shown.remove(lower);
+        List<Node> path = new ArrayList<>();
+        Node node = root;
+        path.add(node);
+        for (int depth = 0; depth < Math.min(lower.length(), MAX_DEPTH); depth++) {
+            node = node.child(lower.charAt(depth));
+            path.add(node);
+        }
+        node.filed = without(node.filed, lower);
+        for (int depth = path.size() - 1; depth >= 0; depth--) {
+            Node current = path.get(depth);
+            if (depth > 0 && current.filed.length == 0 && current.children.length == 0) {
+                removeChild(path.get(depth - 1), lower.charAt(depth - 1));
+            } else if (Arrays.asList(current.top).contains(lower)) {
+                refill(current);
+            }
+        }
+    }
+
+    @Override
+    public void clear() {
+        root = new Node();
+        counts.clear();
+        shown.clear();
+    }
+
+    /** Up to limit (at most TOP_K) names starting with the prefix, best first, as they were added. */
+    List<String> suggest(String prefix, int limit) {
+        String lower = prefix.toLowerCase(Locale.ROOT);
+        Node node = root;
+        for (int depth = 0; depth < Math.min(lower.length(), MAX_DEPTH); depth++) {
+            node = node.child(lower.charAt(depth));
+            if (node == null) {
+                return List.of();
+            }
+        }
+        List<String> names = new ArrayList<>();
+        if (lower.length() <= MAX_DEPTH) {
+            for (int i = 0; i < Math.min(limit, node.top.length); i++) {
+                names.add(shown.get(node.top[i]));
+            }
+            return names;
+        }
+        // Past MAX_DEPTH: everything left is filed at this node.
+        List<String> matching = new ArrayList<>();
+        for (String name : node.filed) {
+            if (name.startsWith(lower)) {
+                matching.add(name);
+            }
+        }
+        matching.sort(RANK);
+        for (String name : matching.subList(0, Math.min(limit, matching.size()))) {
+            names.add(shown.get(name));
+        }
+        return names;
+    }
+
+    // Puts the name into the node's top list if it ranks high enough.
+    private static void offer(Node node, String name) {
+        int at = Arrays.binarySearch(node.top, name, RANK);
+        if (at >= 0) {
+            return;
+        }
+        at = -at - 1;
+        if (at >= TOP_K) {
+            return;
+        }
+        String[] top = new String[Math.min(node.top.length + 1, TOP_K)];
+        System.arraycopy(node.top, 0, top, 0, at);
+        top[at] = name;
+        System.arraycopy(node.top, at, top, at + 1, top.length - at - 1);
+        node.top = top;
+    }
+
+    // Rebuilds the node's top list from its own names and its children's lists.
+    private static void refill(Node node) {
+        node.top = NO_NAMES;
+        for (String name : node.filed) {
+            offer(node, name);
+        }
+        for (Node child : node.children) {
+            for (String name : child.top) {
+                offer(node, name);
+            }
+        }
+    }
+
+    private static Node insertChild(Node parent, char label) {
+        int at = -Arrays.binarySearch(parent.labels, label) - 1;
+        char[] labels = new char[parent.labels.length + 1];
+        Node[] children = new Node[labels.length];
+        System.arraycopy(parent.labels, 0, labels, 0, at);
+        System.arraycopy(parent.children, 0, children, 0, at);
+        labels[at] = label;
+        children[at] = new Node();
+        System.arraycopy(parent.labels, at, labels, at + 1, parent.labels.length - at);
+        System.arraycopy(parent.children, at, children, at + 1, parent.children.length - at);
+        parent.labels = labels;
+        parent.children = children;
+        return children[at];
+    }
+
+    private static void removeChild(Node parent, char label) {
+        int at = Arrays.binarySearch(parent.labels, label);
+        if (at < 0) {
+            return;
+        }
+        char[] labels = new char[parent.labels.length - 1];
+        Node[] children = new Node[labels.length];
+        System.arraycopy(parent.labels, 0, labels, 0, at);
+        System.arraycopy(parent.children, 0, children, 0, at);
+        System.arraycopy(parent.labels, at + 1, labels, at, labels.length - at);
+        System.arraycopy(parent.children, at + 1, children, at, children.length - at);
+        parent.labels = labels;
+        parent.children = children;
+    }
+
+    private static String[] with(String[] names, String name) {
+        String[] more = Arrays.copyOf(names, names.length + 1);
+        more[names.length] = name;
+        return more;
+    }
+
+    private static String[] without(String[] names, String name) {
+        List<String> rest = new ArrayList<>(Arrays.asList(names));
+        rest.remove(name);
+        return rest.toArray(NO_NAMES);
+    }
+}
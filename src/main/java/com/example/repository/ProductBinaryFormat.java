@@ -0,0 +1,116 @@
+package com.example.repository;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+import com.example.model.Product;
+
+/**
+ * Binary snapshot of the product catalog in fixed-width rows, read through a memory-mapped file.
+ *
+ * Layout (big-endian):
+ *  header  magic "PRD1", int version, int count, int reserved     16 bytes
+ *  rows    long idMsb, long idLsb, double price, int nameOffset, int nameLength,
+ *          long entityVersion                                      40 bytes each
+ *  heap    UTF-8 names, addressed by nameOffset relative to the start of the heap
+ *
+ * A name length of -1 stands for a null name, an all-zero id for a null id. Version 1 files have
+ * 32-byte rows without the entity version; they are still read, as entity version 0.
+ */
+final class ProductBinaryFormat {
+
+    private static final int MAGIC = 0x50524431;
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 16;
+    private static final int ROW_SIZE = 40;
+    private static final int V1_ROW_SIZE = 32;
+
+    private ProductBinaryFormat() {
+    }
+
+    /** True if the file starts with this format's magic number; anything else is read as JSON. */
+    static boolean isBinary(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE) {
+                return false;
+            }
+            ByteBuffer header = ByteBuffer.allocate(4);
+            channel.read(header, 0);
+            return header.flip().getInt() == MAGIC;
+        }
+    }
+
+    static void read(Path path, Consumer<Product> sink) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.BIG_ENDIAN);
+            int formatVersion = buffer.getInt(4);
+            if (buffer.getInt(0) != MAGIC || formatVersion < 1 || formatVersion > VERSION) {
+                throw new IOException("Not a product snapshot: " + path);
+            }
+            int rowSize = formatVersion == 1 ? V1_ROW_SIZE : ROW_SIZE;
+            int count = buffer.getInt(8);
+            int heapStart = HEADER_SIZE + count * rowSize;
+            for (int i = 0; i < count; i++) {
+                int row = HEADER_SIZE + i * rowSize;
+                long msb = buffer.getLong(row);
+                long lsb = buffer.getLong(row + 8);
+                double price = buffer.getDouble(row + 16);
+                int nameOffset = buffer.getInt(row + 24);
+                int nameLength = buffer.getInt(row + 28);
+
+                String name = null;
+                if (nameLength >= 0) {
+                    byte[] bytes = new byte[nameLength];
+                    buffer.get(heapStart + nameOffset, bytes);
+                    name = new String(bytes, StandardCharsets.UTF_8);
+                }
+                UUID id = (msb == 0 && lsb == 0) ? null : new UUID(msb, lsb);
+                Product product = new Product(id, name, price);
+                product.setVersion(formatVersion == 1 ? 0 : buffer.getLong(row + 32));
+                sink.accept(product);
+            }
+        }
+    }
+
+    static byte[] encode(Collection<Product> products) {
+        byte[][] names = new byte[products.size()][];
+        int heapSize = 0;
+        int i = 0;
+        for (Product product : products) {
+            names[i] = product.getName() == null ? null : product.getName().getBytes(StandardCharsets.UTF_8);
+            heapSize += names[i] == null ? 0 : names[i].length;
+            i++;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + products.size() * ROW_SIZE + heapSize);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(products.size()).putInt(0);
+        int heapStart = HEADER_SIZE + products.size() * ROW_SIZE;
+        int nameOffset = 0;
+        i = 0;
+        for (Product product : products) {
+            UUID id = product.getId();
+            buffer.putLong(id == null ? 0 : id.getMostSignificantBits());
+            buffer.putLong(id == null ? 0 : id.getLeastSignificantBits());
+            buffer.putDouble(product.getPrice());
+            buffer.putInt(nameOffset);
+            buffer.putInt(names[i] == null ? -1 : names[i].length);
+            buffer.putLong(product.getVersion());
+            if (names[i] != null) {
+                buffer.put(heapStart + nameOffset, names[i]);
+                nameOffset += names[i].length;
+            }
+            i++;
+        }
+        return buffer.array();
+    }
+}
@@ -4,8 +4,19 @@ import com.example.model.Product;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Repository;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.Set;
 import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 @Repository
 public class ProductRepository extends MainRepository<Product> {
@@ -23,28 +34,175 @@ public class ProductRepository extends MainRepository<Product> {
         return Product[].class;
     }
 
+    @Override
+    protected UUID getId(Product product) {
+        return product.getId();
+    }
+
+    // Every lower-cased word of every name, and every price, in order; kept up to date on each
+    // add, update, discount and delete like the other indexes.
+    private final SecondaryIndex<Product> nameWordIndex = addSortedMultiIndex(product -> words(product.getName()));
+    private final SecondaryIndex<Product> priceIndex = addSortedIndex(Product::getPrice);
+    private final PrefixTrie<Product> nameTrie = addCustomIndex(new PrefixTrie<>(Product::getName));
+
     public ProductRepository() {}
 
+    // spring.application.productStorageFormat=binary keeps the catalog in ProductBinaryFormat.
+    // Whichever format the file is in gets read, so switching formats migrates on the next write.
+    @Override
+    protected void readSnapshot(File file, Consumer<Product> sink) throws IOException {
+        if (ProductBinaryFormat.isBinary(file.toPath())) {
+            ProductBinaryFormat.read(file.toPath(), sink);
+        } else {
+            super.readSnapshot(file, sink);
+        }
+    }
+
+    @Override
+    protected byte[] encodeSnapshot(Collection<Product> products) throws IOException {
+        if ("binary".equalsIgnoreCase(getSetting("storageFormat", "json"))) {
+            return ProductBinaryFormat.encode(products);
+        }
+        return super.encodeSnapshot(products);
+    }
+
     public Product addProduct(Product product){
         this.save(product);
         return product;
     }
+    public List<Product> addProducts(List<Product> products){
+        this.saveBatch(products);
+        return products;
+    }
     public ArrayList<Product> getProducts(){
         return this.findAll();
     }
+    public Page<Product> getProductPage(UUID after, int limit){
+        return this.findPage(after, limit);
+    }
+    public ArrayList<Product> getProductsById(List<UUID> productIds){
+        return this.findAllById(productIds);
+    }
 
     public Product getProductById(UUID productId){
-        for (Product product : this.getProducts()) {
-            if (product.getId() != null && product.getId().equals(productId)) {
-                return product;
+        return this.findById(productId);
+    }
+
+    /**
+     * Up to limit products whose name has, for every word of the query, a word starting with it,
+     * priced between minPrice and maxPrice (both inclusive, either may be null). sort is price,
+     * -price, name or null for no particular order.
+     *
+     * Nothing is intersected: the smallest candidate group (the names with a word starting with
+     * one of the query words, or the price range) is walked through its index and each candidate
+     * is checked directly. Without a sort the walk stops after limit matches.
+     */
+    public ArrayList<Product> search(String query, Double minPrice, Double maxPrice, String sort, int limit){
+        Comparator<Product> order = switch (sort == null ? "" : sort) {
+            case "" -> null;
+            case "price" -> Comparator.comparingDouble(Product::getPrice);
+            case "-price" -> Comparator.comparingDouble(Product::getPrice).reversed();
+            case "name" -> Comparator.comparing(product -> product.getName() == null ? "" : product.getName().toLowerCase(Locale.ROOT));
+            default -> throw new IllegalArgumentException("Unknown sort: " + sort);
+        };
+        List<String> words = words(query);
+        Predicate<Product> matches = product -> (minPrice == null || product.getPrice() >= minPrice)
+                && (maxPrice == null || product.getPrice() <= maxPrice)
+                && hasWords(product, words);
+        if (words.isEmpty() && order != null && !"name".equals(sort)) {
+            // The price index already is in the order asked for.
+            return this.findAllBy(() -> {
+                var prices = priceIndex.range(minPrice, maxPrice);
+                var groups = "-price".equals(sort) ? prices.descendingMap().values() : prices.values();
+                return () -> groups.stream().flatMap(Set::stream).iterator();
+            }, product -> true, null, limit);
+        }
+        return this.findAllBy(() -> {
+            Collection<Set<UUID>> groups = smallestCandidates(words, minPrice, maxPrice);
+            // A name can have several words starting with the same query word.
+            return () -> groups.stream().flatMap(Set::stream).distinct().iterator();
+        }, matches, order, limit);
+    }
+
+    /** Up to limit distinct product names starting with the prefix, shortest first; see PrefixTrie. */
+    public List<String> suggestNames(String prefix, int limit){
+        return this.queryIndexes(() -> nameTrie.suggest(prefix, limit));
+    }
+
+    // Caller holds the cache lock (findAllBy runs this under it).
+    private Collection<Set<UUID>> smallestCandidates(List<String> words, Double minPrice, Double maxPrice) {
+        Collection<Set<UUID>> smallest = priceIndex.range(minPrice, maxPrice).values();
+        long smallestSize = minPrice == null && maxPrice == null ? Long.MAX_VALUE : sizeUpTo(smallest, Long.MAX_VALUE);
+        for (String word : words) {
+            Collection<Set<UUID>> withWord = nameWordIndex.range(word, word + Character.MAX_VALUE).values();
+            long size = sizeUpTo(withWord, smallestSize);
+            if (size < smallestSize) {
+                smallest = withWord;
+                smallestSize = size;
+            }
+        }
+        return smallest;
+    }
+
+    // Counts the ids in the groups, giving up once there are limit of them.
+    private static long sizeUpTo(Collection<Set<UUID>> groups, long limit) {
+        long size = 0;
+        for (Set<UUID> ids : groups) {
+            size += ids.size();
+            if (size >= limit) {
+                return limit;
             }
         }
-        return null;
+        return size;
+    }
+
+    private static boolean hasWords(Product product, List<String> words) {
+        if (words.isEmpty()) {
+            return true;
+        }
+        String name = product.getName() == null ? "" : product.getName().toLowerCase(Locale.ROOT);
+        for (String word : words) {
+            if (!hasWordStartingWith(name, word)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Same word boundaries as words(), without splitting the name.
+    private static boolean hasWordStartingWith(String name, String prefix) {
+        for (int at = name.indexOf(prefix); at >= 0; at = name.indexOf(prefix, at + 1)) {
+            if (at == 0 || !isWordChar(name.charAt(at - 1))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isWordChar(char c) {
+        return Character.isLetter(c) || Character.getType(c) == Character.DECIMAL_DIGIT_NUMBER
+                || Character.getType(c) == Character.LETTER_NUMBER || Character.getType(c) == Character.OTHER_NUMBER;
+    }
+
+    static List<String> words(String text) {
+        if (text == null) {
+            return List.of();
+        }
+        List<String> words = new ArrayList<>();
+        for (String word : text.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+")) {
+            if (!word.isEmpty() && !words.contains(word)) {
+                words.add(word);
+            }
+        }
+        return words;
     }
 
     public Product updateProduct(UUID productId, String newName, double newPrice) throws Exception {
-        Product product = getProductById(productId);
+        return updateProduct(productId, newName, newPrice, null);
+    }
 
+    /** Throws VersionConflictException if expectedVersion is given and the product has moved past it. */
+    public Product updateProduct(UUID productId, String newName, double newPrice, Long expectedVersion) throws Exception {
         if (newName == null || newName.isEmpty()) {
             throw new Exception("Please write a name");
         }
@@ -54,44 +212,29 @@ public class ProductRepository extends MainRepository<Product> {
         }
 
         // Update the product
-        product.setName(newName);
-        product.setPrice(newPrice);
-
-        ArrayList<Product> products = findAll();
-        products.remove(product);
-        products.add(product);
-        saveAll(products);
-        return product;
+        Product product = compareAndUpdate(productId, expectedVersion, stored -> {
+            stored.setName(newName);
+            stored.setPrice(newPrice);
+        });
+        return Objects.requireNonNull(product, "Product not found");
     }
 
     public void applyDiscount(double discount, ArrayList<UUID> productIds){
-        ArrayList<Product> products = findAll();
         for (UUID productId : productIds) {
-            Product product = getProductById(productId);
-            double newPrice = product.getPrice() * (1 - discount / 100);
-            product.setPrice(newPrice);
-            products.remove(product);
-            products.add(product);
+            modify(productId, product -> product.setPrice(product.getPrice() * (1 - discount / 100)));
         }
-
-        saveAll(products);
     }
 
     public void deleteProductById(UUID productId){
-        ArrayList<Product> products = this.getProducts();
-        for (Product product : products) {
-            if (product.getId() != null && product.getId().equals(productId)) {
-                products.remove(product);
-                break;
-            }
-        }
-        this.overrideData(products);
+        this.deleteById(productId);
+    }
+
+    public void deleteProducts(List<UUID> productIds){
+        this.deleteBatch(productIds);
     }
 
     public void clearProducts() {
-        ArrayList<Product> products = this.findAll();
-        products.clear();
-        this.overrideData(products);
+        this.overrideData(new ArrayList<>());
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,100 @@
+package com.example.repository;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Offline re-sharding of one repository's data files. Run it while the application is stopped:
+ *
+ *   java -cp mini1.jar -Dloader.main=com.example.repository.ReshardTool \
+ *       org.springframework.boot.loader.launch.PropertiesLauncher &lt;dataPath&gt; &lt;fromShards&gt; &lt;toShards&gt;
+ *
+ * Every old shard (snapshot plus journal and any half-compacted segment) is read, each entity is
+ * placed in its new shard by id, the new snapshots are written atomically, and only then are the
+ * old files removed.
+ * Works on JSON, Smile and CBOR snapshots; convert binary product snapshots back to json first.
+ */
+public final class ReshardTool {
+
+    private ReshardTool() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 3) {
+            System.err.println("Usage: ReshardTool <dataPath> <fromShards> <toShards>");
+            System.exit(2);
+        }
+        reshard(args[0], Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+    }
+
+    public static void reshard(String dataPath, int fromShards, int toShards) throws IOException {
+        if (fromShards < 1 || toShards < 1) {
+            throw new IllegalArgumentException("Shard count must be at least 1");
+        }
+        ObjectMapper objectMapper = new ObjectMapper();
+        // The new shards keep the encoding of the old ones.
+        SnapshotEncoding encoding = null;
+
+        Set<Path> oldFiles = new HashSet<>();
+        LinkedHashMap<UUID, JsonNode> entities = new LinkedHashMap<>();
+        for (int i = 0; i < fromShards; i++) {
+            Path path = Shard.pathFor(dataPath, i, fromShards);
+            Map<UUID, JsonNode> shard = new LinkedHashMap<>();
+            if (Files.exists(path)) {
+                SnapshotEncoding fileEncoding = SnapshotEncoding.detect(path);
+                encoding = encoding == null ? fileEncoding : encoding;
+                for (JsonNode entity : new ObjectMapper(fileEncoding.factory()).readTree(path.toFile())) {
+                    shard.put(idOf(entity), entity);
+                }
+                oldFiles.add(path);
+            }
+            Path journalPath = Shard.journalPathFor(path);
+            try (Journal journal = new Journal(journalPath, objectMapper)) {
+                if (Files.exists(journalPath) || Files.exists(journal.getSealedPath())) {
+                    journal.replay(shard, JsonNode.class);
+                    oldFiles.add(journalPath);
+                    oldFiles.add(journal.getSealedPath());
+                }
+            }
+            entities.putAll(shard);
+        }
+
+        List<List<JsonNode>> partitions = new ArrayList<>();
+        for (int i = 0; i < toShards; i++) {
+            partitions.add(new ArrayList<>());
+        }
+        for (var entry : entities.entrySet()) {
+            partitions.get(Shard.of(entry.getKey(), toShards)).add(entry.getValue());
+        }
+
+        ObjectMapper writer = new ObjectMapper((encoding == null ? SnapshotEncoding.JSON : encoding).factory());
+        Set<Path> newFiles = new HashSet<>();
+        for (int i = 0; i < toShards; i++) {
+            Path path = Shard.pathFor(dataPath, i, toShards);
+            FileStorageEngine.writeAtomically(path, writer.writeValueAsBytes(partitions.get(i)));
+            newFiles.add(path);
+        }
+        for (Path old : oldFiles) {
+            if (!newFiles.contains(old)) {
+                Files.deleteIfExists(old);
+            }
+        }
+        System.out.println("Moved " + entities.size() + " entities from " + fromShards + " to " + toShards + " shards");
+    }
+
+    private static UUID idOf(JsonNode entity) {
+        JsonNode id = entity.get("id");
+        return id == null || id.isNull() ? null : UUID.fromString(id.asText());
+    }
+}
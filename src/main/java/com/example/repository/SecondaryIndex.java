@@ -0,0 +1,102 @@
+package com.example.repository;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.function.Function;
+
+/**
+ * Maps a derived key (e.g. a cart's userId, or every product id in an order) to the ids of the
+ * entities carrying it. Registered through {@link MainRepository#addIndex} and kept up to date by
+ * the repository on every change, under the repository's cache lock.
+ *
+ * A sorted index keeps its keys in natural order (they must be mutually comparable, e.g. all
+ * Doubles or all Strings) and also answers range and prefix queries through {@link #range}.
+ */
+class SecondaryIndex<T> implements EntityIndex<T> {
+
+    private final Function<T, ? extends Collection<?>> keys;
+    private final Map<Object, Set<UUID>> entries;
+
+    SecondaryIndex(Function<T, ? extends Collection<?>> keys) {
+        this(keys, false);
+    }
+
+    SecondaryIndex(Function<T, ? extends Collection<?>> keys, boolean sorted) {
+        this.keys = keys;
+        this.entries = sorted ? new TreeMap<>() : new HashMap<>();
+    }
+
+    static <T> SecondaryIndex<T> single(Function<T, ?> key) {
+        return single(key, false);
+    }
+
+    static <T> SecondaryIndex<T> single(Function<T, ?> key, boolean sorted) {
+        return new SecondaryIndex<>(entity -> {
+            Object value = key.apply(entity);
+            return value == null ? List.of() : List.of(value);
+        }, sorted);
+    }
+
+    @Override
+    public void add(UUID id, T entity) {
+        for (Object key : keysOf(entity)) {
+            entries.computeIfAbsent(key, k -> new LinkedHashSet<>()).add(id);
+        }
+    }
+
+    @Override
+    public void remove(UUID id, T entity) {
+        for (Object key : keysOf(entity)) {
+            Set<UUID> ids = entries.get(key);
+            if (ids != null) {
+                ids.remove(id);
+                if (ids.isEmpty()) {
+                    entries.remove(key);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void clear() {
+        entries.clear();
+    }
+
+    Set<UUID> get(Object key) {
+        Set<UUID> ids = entries.get(key);
+        return ids == null ? Collections.emptySet() : ids;
+    }
+
+    /**
+     * The keys from from to to, both inclusive and either null for no bound, with the ids under
+     * each, as a live view. Only for sorted indexes; callers must hold the cache lock while using it.
+     */
+    NavigableMap<Object, Set<UUID>> range(Object from, Object to) {
+        if (!(entries instanceof TreeMap<Object, Set<UUID>> sorted)) {
+            throw new IllegalStateException("Not a sorted index");
+        }
+        if (from == null && to == null) {
+            return sorted;
+        }
+        if (from == null) {
+            return sorted.headMap(to, true);
+        }
+        if (to == null) {
+            return sorted.tailMap(from, true);
+        }
+        return sorted.subMap(from, true, to, true);
+    }
+
+    private Collection<?> keysOf(T entity) {
+        Collection<?> values = keys.apply(entity);
+        return values == null ? List.of() : values;
+    }
+}
@@ -0,0 +1,86 @@
+package com.example.repository;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * One hash partition of a repository's data: a snapshot file and, in journal mode, its journal.
+ * With a single shard the snapshot is the configured data path itself; with N shards,
+ * users.json becomes users.0.json ... users.(N-1).json and each entity lives in shard
+ * floorMod(id.hashCode(), N).
+ */
+final class Shard implements AutoCloseable {
+
+    private final int number;
+    private final Path dataPath;
+    private final Journal journal;
+    // Bumped on every full snapshot rewrite so a compaction that started before it knows its result is stale.
+    // Guarded by the repository's flush lock.
+    private long generation;
+
+    Shard(int number, Path dataPath, Journal journal) {
+        this.number = number;
+        this.dataPath = dataPath;
+        this.journal = journal;
+    }
+
+    static Path pathFor(String dataPath, int shard, int count) {
+        if (count == 1) {
+            return Path.of(dataPath);
+        }
+        Path path = Path.of(dataPath);
+        String fileName = path.getFileName().toString();
+        int dot = fileName.lastIndexOf('.');
+        String sharded = dot < 0 ? fileName + "." + shard : fileName.substring(0, dot) + "." + shard + fileName.substring(dot);
+        return path.resolveSibling(sharded);
+    }
+
+    static Path journalPathFor(Path shardPath) {
+        return shardPath.resolveSibling(shardPath.getFileName() + ".journal");
+    }
+
+    static int of(UUID id, int count) {
+        return id == null ? 0 : Math.floorMod(id.hashCode(), count);
+    }
+
+    int getNumber() {
+        return number;
+    }
+
+    Path getDataPath() {
+        return dataPath;
+    }
+
+    /** Null unless the repository runs in journal mode. */
+    Journal getJournal() {
+        return journal;
+    }
+
+    long getGeneration() {
+        return generation;
+    }
+
+    void nextGeneration() {
+        generation++;
+    }
+
+    List<Path> files() {
+        List<Path> files = new ArrayList<>();
+        files.add(dataPath);
+        if (journal != null) {
+            files.add(journal.getSealedPath());
+            files.add(journal.getPath());
+        }
+        return files;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (journal != null) {
+            journal.close();
+        }
+    }
+}
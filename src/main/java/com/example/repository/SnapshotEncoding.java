@@ -0,0 +1,76 @@
+package com.example.repository;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.cbor.CBORGenerator;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileGenerator;
+
+/**
+ * How a repository's snapshot files are encoded, picked with spring.application.&lt;entity&gt;Encoding.
+ * Smile and CBOR write every repeated field name and short string value ("id", "userId", product
+ * UUIDs in orders) once and refer back to it afterwards. Files are read in whatever encoding
+ * they are in, so changing the setting converts each file on its next write; EncodingTool
+ * converts them right away.
+ */
+enum SnapshotEncoding {
+
+    JSON {
+        @Override
+        JsonFactory factory() {
+            return new JsonFactory();
+        }
+    },
+    SMILE {
+        @Override
+        JsonFactory factory() {
+            return SmileFactory.builder()
+                    .enable(SmileGenerator.Feature.CHECK_SHARED_NAMES)
+                    .enable(SmileGenerator.Feature.CHECK_SHARED_STRING_VALUES)
+                    .build();
+        }
+    },
+    CBOR {
+        @Override
+        JsonFactory factory() {
+            return CBORFactory.builder()
+                    .enable(CBORGenerator.Feature.STRINGREF)
+                    .build();
+        }
+    };
+
+    abstract JsonFactory factory();
+
+    static SnapshotEncoding of(String name) {
+        try {
+            return valueOf(name.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown encoding: " + name);
+        }
+    }
+
+    /**
+     * Tells the encodings apart by their first bytes: Smile files start with ":)\n", CBOR
+     * snapshots with an array or a tag (stringref) header; anything else is taken for JSON.
+     */
+    static SnapshotEncoding detect(Path path) throws IOException {
+        byte[] head = new byte[3];
+        int read;
+        try (InputStream in = Files.newInputStream(path)) {
+            read = in.readNBytes(head, 0, head.length);
+        }
+        if (read == 3 && head[0] == ':' && head[1] == ')' && head[2] == '\n') {
+            return SMILE;
+        }
+        int first = read == 0 ? -1 : head[0] & 0xff;
+        if ((first >= 0x80 && first <= 0x9f) || (first >= 0xc0 && first <= 0xdb)) {
+            return CBOR;
+        }
+        return JSON;
+    }
+}
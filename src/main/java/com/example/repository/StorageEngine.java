@@ -0,0 +1,58 @@
+package com.example.repository;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * How a {@link MainRepository} persists its entities. The repository keeps the resident copy, the
+ * indexes and the locking; an engine only loads the stored state and makes batches of changes
+ * durable. Selected per repository with spring.application.&lt;entity&gt;StorageEngine:
+ *
+ *  - file (default): JSON snapshot files, optionally sharded and journaled ({@link FileStorageEngine})
+ *  - h2: an embedded H2 database with one row per entity ({@link H2StorageEngine})
+ *
+ * Repositories can also plug in their own by overriding {@link MainRepository#createStorageEngine()}.
+ */
+public interface StorageEngine<T> extends AutoCloseable {
+
+    enum Op { INSERT, UPDATE, DELETE, REPLACE_ALL }
+
+    /** One change to the stored data; REPLACE_ALL carries no id or entity and stores the whole state. */
+    record Change<T>(Op op, UUID id, T entity) {}
+
+    /** Entities in their stored order, and a version to hand back to {@link #isAt} and {@link #markLoaded}. */
+    record Loaded<T>(LinkedHashMap<UUID, T> entities, Object version) {}
+
+    /** The second half of a write, run by the writer thread after the repository's lock is released. */
+    interface Write {
+        void commit() throws IOException;
+    }
+
+    /** Reads everything that is stored. */
+    Loaded<T> load() throws IOException;
+
+    /** True if the stored data is still at the given version. */
+    boolean isAt(Object version);
+
+    /** Records that the repository now holds the state read at the given version. */
+    void markLoaded(Object version);
+
+    /** True if the stored data changed since it was last loaded or written by this engine. */
+    boolean isStale();
+
+    /**
+     * Encodes a batch of changes. Runs under the repository's read lock, so {@code current}
+     * (the resident state, entities must not be modified) matches the batch exactly.
+     */
+    Write prepare(List<Change<T>> batch, Map<UUID, T> current) throws IOException;
+
+    /** Starts any background work once the first load is done; {@code onExternalChange} reloads the repository. */
+    default void open(Runnable onExternalChange) throws IOException {
+    }
+
+    @Override
+    void close() throws IOException;
+}
@@ -0,0 +1,27 @@
+package com.example.repository;
+
+import java.util.UUID;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed pool of locks handed out by entity id: changes to the same entity are serialized,
+ * changes to different entities almost never wait for each other, and the memory cost does not
+ * grow with the number of entities.
+ */
+class StripedLocks {
+
+    private final ReentrantLock[] stripes;
+
+    StripedLocks(int count) {
+        int size = Integer.highestOneBit(Math.max(count - 1, 1)) << 1;
+        stripes = new ReentrantLock[size];
+        for (int i = 0; i < size; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+    }
+
+    ReentrantLock get(UUID id) {
+        int hash = id == null ? 0 : id.hashCode();
+        return stripes[(hash ^ (hash >>> 16)) & (stripes.length - 1)];
+    }
+}
@@ -0,0 +1,7 @@
+package com.example.repository;
+
+import java.time.Instant;
+
+/** The entities a {@link TimeSeriesIndex} counted in the bucket starting at start, and the sum of their amounts. */
+public record TimeBucket(Instant start, long count, double total) {
+}
@@ -0,0 +1,137 @@
+package com.example.repository;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToLongFunction;
+
+/**
+ * Counts entities and sums an amount of theirs (e.g. order revenue) per minute, hour and day of
+ * their timestamp, in UTC, so totals over a time range are read from at most one bucket per
+ * step instead of from the entities.
+ *
+ * Each granularity is a ring of fixed size holding the latest buckets written: a week of
+ * minutes, about a year of hours and ten years of days. A slot remembers which bucket it holds,
+ * so moving on to a newer bucket needs no clearing, and changes to buckets that have left the
+ * ring are ignored. Entities without a timestamp (0) are not counted.
+ */
+class TimeSeriesIndex<T> implements EntityIndex<T> {
+
+    private static final class Ring {
+        final long width;
+        final long[] bucketOf;
+        final long[] counts;
+        final double[] totals;
+        // The newest bucket written so far; the ring holds this one and the capacity - 1 before it.
+        long head = Long.MIN_VALUE;
+
+        Ring(ChronoUnit unit, int capacity) {
+            width = unit.getDuration().toMillis();
+            bucketOf = new long[capacity];
+            counts = new long[capacity];
+            totals = new double[capacity];
+            Arrays.fill(bucketOf, Long.MIN_VALUE);
+        }
+
+        long oldest() {
+            return head - bucketOf.length + 1;
+        }
+
+        void add(long time, long count, double amount) {
+            long bucket = Math.floorDiv(time, width);
+            if (bucket > head) {
+                if (count < 0) {
+                    return;
+                }
+                head = bucket;
+            } else if (bucket < oldest()) {
+                return;
+            }
+            int slot = (int) Math.floorMod(bucket, (long) bucketOf.length);
+            if (bucketOf[slot] != bucket) {
+                if (count < 0) {
+                    return;
+                }
+                bucketOf[slot] = bucket;
+                counts[slot] = 0;
+                totals[slot] = 0;
+            }
+            counts[slot] += count;
+            totals[slot] = counts[slot] == 0 ? 0 : totals[slot] + amount;
+        }
+
+        TimeBucket read(long bucket) {
+            int slot = (int) Math.floorMod(bucket, (long) bucketOf.length);
+            boolean held = bucketOf[slot] == bucket;
+            return new TimeBucket(Instant.ofEpochMilli(bucket * width), held ? counts[slot] : 0, held ? totals[slot] : 0);
+        }
+    }
+
+    private final ToLongFunction<T> time;
+    private final ToDoubleFunction<T> amount;
+    private final Map<ChronoUnit, Ring> rings = new EnumMap<>(ChronoUnit.class);
+
+    TimeSeriesIndex(ToLongFunction<T> time, ToDoubleFunction<T> amount) {
+        this.time = time;
+        this.amount = amount;
+        clear();
+    }
+
+    @Override
+    public void add(UUID id, T entity) {
+        count(entity, 1);
+    }
+
+    @Override
+    public void remove(UUID id, T entity) {
+        count(entity, -1);
+    }
+
+    private void count(T entity, int sign) {
+        long at = time.applyAsLong(entity);
+        if (at == 0) {
+            return;
+        }
+        double value = amount.applyAsDouble(entity);
+        for (Ring ring : rings.values()) {
+            ring.add(at, sign, sign * value);
+        }
+    }
+
+    @Override
+    public void clear() {
+        rings.put(ChronoUnit.MINUTES, new Ring(ChronoUnit.MINUTES, 7 * 24 * 60));
+        rings.put(ChronoUnit.HOURS, new Ring(ChronoUnit.HOURS, 400 * 24));
+        rings.put(ChronoUnit.DAYS, new Ring(ChronoUnit.DAYS, 3660));
+    }
+
+    /**
+     * One bucket per step from the one holding from up to, excluding, to, empty ones included.
+     * Throws IllegalArgumentException for ranges reaching back before the oldest bucket kept.
+     */
+    List<TimeBucket> query(Instant from, Instant to, ChronoUnit unit) {
+        Ring ring = rings.get(unit);
+        if (ring == null) {
+            throw new IllegalArgumentException("Unsupported granularity: " + unit);
+        }
+        long first = Math.floorDiv(from.toEpochMilli(), ring.width);
+        long last = Math.floorDiv(to.toEpochMilli() - 1, ring.width);
+        if (last - first >= ring.bucketOf.length) {
+            throw new IllegalArgumentException("At most " + ring.bucketOf.length + " " + unit + " can be read at once");
+        }
+        if (ring.head != Long.MIN_VALUE && first < ring.oldest()) {
+            throw new IllegalArgumentException(unit + " are only kept from " + Instant.ofEpochMilli(ring.oldest() * ring.width));
+        }
+        List<TimeBucket> buckets = new ArrayList<>((int) Math.max(0, last - first + 1));
+        for (long bucket = first; bucket <= last; bucket++) {
+            buckets.add(ring.read(bucket));
+        }
+        return buckets;
+    }
+}
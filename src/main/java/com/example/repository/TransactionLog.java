@@ -0,0 +1,237 @@
+package com.example.repository;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Write-ahead log for {@link UnitOfWork}s that change several repositories at once. Each unit is
+ * one line, {"changes":[{"repository":"order","entity":{...}},...]}, made durable by one fsync
+ * (shared by every unit logged meanwhile) before any repository writes its part of it.
+ *
+ * On startup the log is replayed into the repositories: an entity is stored again unless the
+ * stored one is at least at its logged version, so units cut short by a crash are completed and
+ * units already written (or overwritten since) are left alone. Records are dropped as soon as
+ * every unit logged so far has reached its repositories, so an entity deleted after its unit was
+ * stored is not brought back. A repository keeps rewriting a unit's changes it failed to store
+ * (see MainRepository#applyLogged), and the unit's record stays until it succeeds.
+ */
+@Component
+public class TransactionLog {
+
+    private final Map<String, MainRepository<?>> repositories = new HashMap<>();
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Value("${spring.application.transactionLogPath}")
+    private String logPath;
+
+    private GroupCommitWriter<UnitOfWork> writer;
+    private FileChannel channel;
+    // Units logged whose changes are not all in their repositories' stored data yet.
+    private final AtomicInteger outstanding = new AtomicInteger();
+    // Set by close under this object's lock; written no longer asks the writer for anything.
+    private boolean closed;
+
+    // How long close waits for the repositories to store the units still outstanding.
+    private static final long CLOSE_TIMEOUT_MILLIS = 5000;
+
+    public TransactionLog(List<MainRepository<?>> repositories) {
+        for (MainRepository<?> repository : repositories) {
+            this.repositories.put(repository.getName(), repository);
+        }
+    }
+
+    public UnitOfWork begin() {
+        return new UnitOfWork(this);
+    }
+
+    @PostConstruct
+    public void recover() {
+        try {
+            Path path = Path.of(logPath);
+            if (Files.exists(path)) {
+                List<CompletableFuture<Void>> recovered = new ArrayList<>();
+                for (JsonNode unit : readUnits(path)) {
+                    for (JsonNode change : unit.get("changes")) {
+                        recovered.add(recover(repository(change.get("repository").asText()), change.get("entity")));
+                    }
+                }
+                CompletableFuture.allOf(recovered.toArray(CompletableFuture[]::new)).join();
+                channel().truncate(0);
+                channel().force(false);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to recover transaction log", e);
+        }
+        writer = new GroupCommitWriter<>("transaction-log", "sync", this::flushBatch);
+    }
+
+    // A crash in the middle of an append leaves a torn last line: that unit never committed.
+    private List<JsonNode> readUnits(Path path) throws IOException {
+        List<JsonNode> units = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isBlank()) {
+                    continue;
+                }
+                try {
+                    units.add(objectMapper.readTree(line));
+                } catch (JsonProcessingException e) {
+                    break;
+                }
+            }
+        }
+        return units;
+    }
+
+    private <T> CompletableFuture<Void> recover(MainRepository<T> repository, JsonNode entity) throws IOException {
+        return repository.recover(repository.getObjectMapper().treeToValue(entity, repository.getEntityType()));
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> MainRepository<T> repository(String name) throws IOException {
+        MainRepository<T> repository = (MainRepository<T>) repositories.get(name);
+        if (repository == null) {
+            throw new IOException("Unknown repository in transaction log: " + name);
+        }
+        return repository;
+    }
+
+    /**
+     * Queues a unit for the next fsync. Called with the write locks of the unit's repositories
+     * held, so units touching the same repository are logged in the order they were applied.
+     */
+    CompletableFuture<Void> submit(UnitOfWork unit) {
+        outstanding.incrementAndGet();
+        return writer.submit(unit);
+    }
+
+    /**
+     * Called once every change of a logged unit is in its repository's stored data. When that
+     * leaves nothing outstanding, the log's thread is asked (with a null record) to drop the
+     * records right away rather than with the next unit.
+     */
+    void written() {
+        if (outstanding.decrementAndGet() == 0) {
+            synchronized (this) {
+                if (!closed) {
+                    writer.submit(null);
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    private void flushBatch() throws IOException {
+        List<UnitOfWork> batch = writer.drain();
+        batch.removeIf(Objects::isNull);
+        if (batch.isEmpty()) {
+            if (outstanding.get() == 0) {
+                truncate();
+            }
+            return;
+        }
+        // Every unit logged before this batch is in its repositories' stored data: drop their
+        // records. The batch's fsync below makes that durable too.
+        if (outstanding.get() == batch.size()) {
+            channel().truncate(0);
+        }
+        ByteBuffer[] buffers = new ByteBuffer[batch.size()];
+        long length = 0;
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = ByteBuffer.wrap(encode(batch.get(i)));
+            length += buffers[i].remaining();
+        }
+        FileChannel out = channel();
+        long written = 0;
+        while (written < length) {
+            written += out.write(buffers);
+        }
+        out.force(false);
+    }
+
+    private void truncate() throws IOException {
+        FileChannel out = channel();
+        if (out.size() > 0) {
+            out.truncate(0);
+            out.force(false);
+        }
+    }
+
+    // The repositories close after the log: give the units they are still storing a moment, so
+    // their records are dropped now instead of being replayed on the next start.
+    private synchronized void awaitWritten() {
+        long deadline = System.currentTimeMillis() + CLOSE_TIMEOUT_MILLIS;
+        try {
+            for (long left = CLOSE_TIMEOUT_MILLIS; outstanding.get() > 0 && left > 0; left = deadline - System.currentTimeMillis()) {
+                wait(left);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        closed = true;
+    }
+
+    private byte[] encode(UnitOfWork unit) throws IOException {
+        ObjectNode record = objectMapper.createObjectNode();
+        ArrayNode changes = record.putArray("changes");
+        for (UnitOfWork.Staged<?> staged : unit.staged()) {
+            ObjectNode change = changes.addObject();
+            change.put("repository", staged.repository().getName());
+            change.set("entity", staged.repository().getObjectMapper().valueToTree(staged.stored()));
+        }
+        return (objectMapper.writeValueAsString(record) + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private FileChannel channel() throws IOException {
+        if (channel == null || !channel.isOpen()) {
+            Path parent = Path.of(logPath).toAbsolutePath().getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            channel = FileChannel.open(Path.of(logPath), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+        return channel;
+    }
+
+    @PreDestroy
+    public void close() throws IOException {
+        if (writer != null) {
+            awaitWritten();
+            writer.close();
+            // The writer's thread is gone; drop the records here if the last unit settled meanwhile.
+            if (outstanding.get() == 0) {
+                truncate();
+            }
+        }
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package com.example.repository;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Consumer;
+
+import com.example.repository.StorageEngine.Op;
+
+/**
+ * Changes to several repositories that are stored together or not at all, e.g. a checkout's new
+ * order, the user's updated order list and the emptied cart. Start one with
+ * {@link TransactionLog#begin()}, stage the changes, then {@link #commit()}.
+ *
+ * Staging reads each entity once and applies the change to a copy without holding a lock. The
+ * commit takes the write locks of the repositories involved, checks that none of the entities
+ * changed in the meantime (restaging the updates if one did, like {@link MainRepository#modify}),
+ * then puts the copies into the caches and queues one record of all of them on the transaction
+ * log. Returns once that record is on disk; each repository writes its part afterwards in its
+ * own batches, but never before the record is durable, so a crash at any point leaves either
+ * nothing or a log record to complete the unit from.
+ */
+public class UnitOfWork {
+
+    private static final Comparator<MainRepository<?>> LOCK_ORDER = Comparator.comparing(MainRepository::getName);
+
+    private final TransactionLog log;
+    private final List<Staged<?>> staged = new ArrayList<>();
+
+    static final class Staged<T> {
+        private final MainRepository<T> repository;
+        private final UUID id;
+        private final T inserted;
+        private final Long expectedVersion;
+        private final Consumer<T> change;
+        private T resident;
+        private T stored;
+
+        private Staged(MainRepository<T> repository, UUID id, T inserted, Long expectedVersion, Consumer<T> change) {
+            this.repository = repository;
+            this.id = id;
+            this.inserted = inserted;
+            this.expectedVersion = expectedVersion;
+            this.change = change;
+        }
+
+        MainRepository<T> repository() {
+            return repository;
+        }
+
+        T stored() {
+            return stored;
+        }
+
+        private void stage() {
+            resident = repository.resident(id);
+            if (inserted != null) {
+                if (resident != null) {
+                    throw new IllegalStateException(repository.getEntityType().getSimpleName() + " already exists");
+                }
+                stored = repository.copy(inserted);
+                MainRepository.setVersion(stored, repository.nextVersion(null));
+                return;
+            }
+            if (resident == null) {
+                throw new IllegalArgumentException(repository.getEntityType().getSimpleName() + " not found");
+            }
+            long version = MainRepository.versionOf(resident);
+            if (expectedVersion != null && version != expectedVersion) {
+                throw new VersionConflictException(id, expectedVersion, version);
+            }
+            stored = repository.copy(resident);
+            change.accept(stored);
+            // Versioned here, before the unit is logged: the log's thread encodes stored while
+            // apply runs, so the logged entity must already be exactly what gets stored.
+            MainRepository.setVersion(stored, repository.nextVersion(resident));
+        }
+
+        private boolean isCurrent() {
+            return repository.isResident(id, resident);
+        }
+
+        private CompletableFuture<Void> apply(CompletableFuture<Void> logged) {
+            return repository.applyLogged(resident == null ? Op.INSERT : Op.UPDATE, id, stored, logged);
+        }
+    }
+
+    UnitOfWork(TransactionLog log) {
+        this.log = log;
+    }
+
+    List<Staged<?>> staged() {
+        return staged;
+    }
+
+    /** Stages a new entity; the commit fails with IllegalStateException if its id is taken. */
+    public <T> UnitOfWork insert(MainRepository<T> repository, T entity) {
+        staged.add(new Staged<>(repository, repository.getId(entity), entity, null, null));
+        return this;
+    }
+
+    /**
+     * Stages a change to a copy of a stored entity; the commit fails with IllegalArgumentException
+     * if there is none, or with a {@link VersionConflictException} if expectedVersion is given and
+     * the entity is at another version. Without one, the change is reapplied to the newer entity.
+     */
+    public <T> UnitOfWork update(MainRepository<T> repository, UUID id, Long expectedVersion, Consumer<T> change) {
+        staged.add(new Staged<>(repository, id, null, expectedVersion, change));
+        return this;
+    }
+
+    public void commit() {
+        Set<MainRepository<?>> repositories = new LinkedHashSet<>();
+        staged.stream().map(Staged::repository).sorted(LOCK_ORDER).forEach(repositories::add);
+        CompletableFuture<Void> logged;
+        List<CompletableFuture<Void>> writes = new ArrayList<>();
+        while (true) {
+            staged.forEach(Staged::stage);
+            List<MainRepository<?>> locked = new ArrayList<>();
+            try {
+                for (MainRepository<?> repository : repositories) {
+                    repository.writeLock().lock();
+                    locked.add(repository);
+                }
+                if (!staged.stream().allMatch(Staged::isCurrent)) {
+                    continue;
+                }
+                logged = log.submit(this);
+                for (Staged<?> change : staged) {
+                    writes.add(change.apply(logged));
+                }
+                break;
+            } finally {
+                for (int i = locked.size() - 1; i >= 0; i--) {
+                    locked.get(i).writeLock().unlock();
+                }
+            }
+        }
+        // Once every part is stored the log record is no longer needed. A part whose write fails
+        // is written again by its repository, and the record stays until then.
+        CompletableFuture.allOf(writes.toArray(CompletableFuture[]::new)).whenComplete((ignored, failure) -> log.written());
+        try {
+            logged.join();
+        } catch (CompletionException e) {
+            throw new RuntimeException("Failed to write transaction log", e.getCause());
+        }
+    }
+}
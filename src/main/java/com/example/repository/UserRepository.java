@@ -2,6 +2,7 @@ package com.example.repository;
 
 import com.example.model.Order;
 import com.example.model.User;
+import com.example.model.UserStats;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Repository;
 
@@ -13,6 +14,7 @@ import java.util.UUID;
 @SuppressWarnings("rawtypes")
 public class UserRepository extends MainRepository<User>{
     public UserRepository() {
+        objectMapper.addMixIn(Order.class, OrderRepository.StoredOrder.class);
     }
 
     @Value("${spring.application.userDataPath}")
@@ -28,17 +30,21 @@ public class UserRepository extends MainRepository<User>{
         return User[].class;
     }
 
+    @Override
+    protected UUID getId(User user) {
+        return user.getId();
+    }
+
     public ArrayList<User> getUsers() {
         return this.findAll();
     }
 
+    public Page<User> getUserPage(UUID after, int limit) {
+        return this.findPage(after, limit);
+    }
+
     public User getUserById(UUID userId){
-        for (User user : this.getUsers()) {
-            if (user.getId().equals(userId)) {
-                return user;
-            }
-        }
-        return null;
+        return this.findById(userId);
     }
 
     public User addUser(User user) {
@@ -46,35 +52,33 @@ public class UserRepository extends MainRepository<User>{
         return user;
     }
 
+    public List<User> addUsers(List<User> users) {
+        this.saveBatch(users);
+        return users;
+    }
+
     public List<Order> getOrdersByUserId(UUID userId) {
         return this.getUserById(userId).getOrders();
     }
 
-    public void addOrderToUser(UUID userId, Order order) {
-        ArrayList<User> users = findAll();
-        for (User user : users) {
-            if (user.getId().equals(userId)) {
-                user.getOrders().add(order);
-                break;
+    // Copies only the stats, not the user's orders; null if there is no such user.
+    public UserStats getStatsByUserId(UUID userId) {
+        return this.readById(userId, user -> {
+            if (user == null) {
+                return null;
             }
-        }
-        overrideData(users);
+            UserStats stats = user.getStats();
+            return new UserStats(stats.getOrderCount(), stats.getTotalSpent(), stats.getLastOrderId());
+        });
+    }
+
+    // The stats change in the same modify as the orders, so they are stored together.
+    public void addOrderToUser(UUID userId, Order order) {
+        modify(userId, user -> user.addOrder(order));
     }
 
     public void removeOrderFromUser(UUID userId, UUID orderId) {
-        ArrayList<User> users = findAll();
-        for (User user : users) {
-            if (user.getId().equals(userId)) {
-                for (Order order : user.getOrders()) {
-                    if (order.getId().equals(orderId)) {
-                        user.getOrders().remove(order);
-                        break;
-                    }
-                }
-                break;
-            }
-        }
-        overrideData(users);
+        modify(userId, user -> user.removeOrder(orderId));
 
         //should remove the order from the order repository
     }
@@ -85,20 +89,11 @@ public class UserRepository extends MainRepository<User>{
     }
 
     public void deleteUserById(UUID userId) {
-        ArrayList<User> users = this.getUsers();
-        for (User user : users) {
-            if (user.getId().equals(userId)) {
-                users.remove(user);
-                break;
-            }
-        }
-        this.overrideData(users);
+        this.deleteById(userId);
     }
 
     public void clearUsers() {
-        ArrayList<User> users = this.findAll();
-        users.clear();
-        this.overrideData(users);
+        this.overrideData(new ArrayList<>());
     }
 
 
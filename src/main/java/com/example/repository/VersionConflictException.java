@@ -0,0 +1,20 @@
+package com.example.repository;
+
+import java.util.UUID;
+
+/** Thrown by {@link MainRepository#compareAndUpdate} when the entity is no longer at the version the caller read. */
+public class VersionConflictException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long currentVersion;
+
+    public VersionConflictException(UUID id, long expectedVersion, long currentVersion) {
+        super("Entity " + id + " is at version " + currentVersion + ", not " + expectedVersion);
+        this.currentVersion = currentVersion;
+    }
+
+    public long getCurrentVersion() {
+        return currentVersion;
+    }
+}
@@ -3,6 +3,8 @@ package com.example.service;
 import com.example.model.Cart;
 import com.example.model.Product;
 import com.example.repository.CartRepository;
+import com.example.repository.Page;
+import com.example.repository.ProductRepository;
 import org.springframework.stereotype.Service;
 
 import java.util.ArrayList;
@@ -12,10 +14,12 @@ import java.util.UUID;
 public class CartService extends MainService<Cart>{
     //The Dependency Injection Variables
     private final CartRepository cartRepository;
+    private final ProductRepository productRepository;
 
     //The Constructor with the requried variables mapping the Dependency Injection.
-    public CartService(CartRepository cartRepository) {
+    public CartService(CartRepository cartRepository, ProductRepository productRepository) {
         this.cartRepository = cartRepository;
+        this.productRepository = productRepository;
     }
 
     public Cart addCart(Cart cart){
@@ -24,18 +28,23 @@ public class CartService extends MainService<Cart>{
             throw new IllegalArgumentException("Cart not found");
         }
 
-        ArrayList<Cart> existingCarts = cartRepository.getCarts();
-        for (Cart existingCart : existingCarts) {
-            if (existingCart.getId().equals(cart.getId())) {
-                throw new IllegalStateException("Cart already exists");
-            }
+        if (cartRepository.existsById(cart.getId())) {
+            throw new IllegalStateException("Cart already exists");
         }
 
         return cartRepository.addCart(cart);
     }
 
     public ArrayList<Cart> getCarts(){
-        return cartRepository.getCarts();
+        ArrayList<Cart> carts = cartRepository.getCarts();
+        carts.forEach(this::resolveProducts);
+        return carts;
+    }
+
+    public Page<Cart> getCartPage(UUID after, int limit){
+        Page<Cart> page = cartRepository.getCartPage(after, limit);
+        page.items().forEach(this::resolveProducts);
+        return page;
     }
 
     public Cart getCartById(UUID cartId){
@@ -45,7 +54,7 @@ public class CartService extends MainService<Cart>{
         if(cartRepository.getCartById(cartId) == null){
             throw new IllegalArgumentException("Cart not found");
         }
-        return cartRepository.getCartById(cartId);
+        return resolveProducts(cartRepository.getCartById(cartId));
     }
 
     public Cart getCartByUserId(UUID userId){
@@ -53,10 +62,14 @@ public class CartService extends MainService<Cart>{
             throw new IllegalArgumentException("User ID is null");
         }
 
-        return cartRepository.getCartByUserId(userId);
+        return resolveProducts(cartRepository.getCartByUserId(userId));
     }
 
     public void addProductToCart(UUID cartId, Product product){
+        addProductToCart(cartId, product, null);
+    }
+
+    public Cart addProductToCart(UUID cartId, Product product, Long expectedVersion){
         Cart cart = this.getCartById(cartId);
         if(cart == null){
             throw new IllegalArgumentException("Cart not found");
@@ -65,7 +78,7 @@ public class CartService extends MainService<Cart>{
             throw new IllegalArgumentException("Product not found");
         }
 
-        cartRepository.addProductToCart(cartId, product);
+        return cartRepository.addProductToCart(cartId, product, expectedVersion);
     }
 
     public void deleteProductFromCart(UUID cartId, Product product){
@@ -92,4 +105,12 @@ public class CartService extends MainService<Cart>{
         cartRepository.deleteCartById(cartId);
     }
 
+    // Carts only hold product ids and quantities; fill in the products' current name and price.
+    private Cart resolveProducts(Cart cart){
+        if(cart != null){
+            cart.resolveProducts(productRepository::getProductById);
+        }
+        return cart;
+    }
+
 }
@@ -0,0 +1,50 @@
+package com.example.service;
+
+import java.util.UUID;
+
+/** An asynchronous checkout: the order it creates and how far it got. */
+public class CheckoutJob {
+
+    public enum Status { QUEUED, PROCESSING, COMPLETED, FAILED }
+
+    private final UUID orderId;
+    private final UUID userId;
+    private volatile Status status;
+    private volatile String error;
+
+    public CheckoutJob(UUID orderId, UUID userId, Status status) {
+        this.orderId = orderId;
+        this.userId = userId;
+        this.status = status;
+    }
+
+    public UUID getOrderId() {
+        return orderId;
+    }
+
+    public UUID getUserId() {
+        return userId;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    // Why the checkout failed; null unless the status is FAILED.
+    public String getError() {
+        return error;
+    }
+
+    void processing() {
+        status = Status.PROCESSING;
+    }
+
+    void completed() {
+        status = Status.COMPLETED;
+    }
+
+    void failed(String error) {
+        this.error = error;
+        status = Status.FAILED;
+    }
+}
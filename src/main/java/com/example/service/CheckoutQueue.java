@@ -0,0 +1,108 @@
+package com.example.service;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.stereotype.Component;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Runs accepted checkouts on a small worker pool behind a bounded queue, so a burst of checkouts
+ * waits in memory instead of holding request threads. A full queue rejects new checkouts with a
+ * RejectedExecutionException rather than growing. At most one checkout per user is in flight;
+ * finished jobs are remembered (up to spring.application.checkoutJobsKept) for status queries.
+ */
+@Component
+// Shut down before the transaction log and the repositories, so queued checkouts still get stored.
+@DependsOn("transactionLog")
+public class CheckoutQueue {
+
+    @Value("${spring.application.checkoutWorkers}")
+    private int workers;
+
+    @Value("${spring.application.checkoutQueueCapacity}")
+    private int capacity;
+
+    @Value("${spring.application.checkoutJobsKept}")
+    private int jobsKept;
+
+    private ThreadPoolExecutor executor;
+    private final Map<UUID, CheckoutJob> jobs = new ConcurrentHashMap<>();
+    private final Queue<UUID> finished = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger finishedCount = new AtomicInteger();
+    private final Set<UUID> usersInFlight = ConcurrentHashMap.newKeySet();
+
+    @PostConstruct
+    public void start() {
+        AtomicInteger threads = new AtomicInteger();
+        executor = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(capacity), runnable -> {
+            Thread thread = new Thread(runnable, "checkout-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Queues the work of a checkout that was validated and priced. Throws IllegalStateException if
+     * the user already has one in flight and RejectedExecutionException if the queue is full.
+     */
+    public CheckoutJob submit(UUID orderId, UUID userId, Runnable work) {
+        if (!usersInFlight.add(userId)) {
+            throw new IllegalStateException("Checkout already in progress for user: " + userId);
+        }
+        CheckoutJob job = new CheckoutJob(orderId, userId, CheckoutJob.Status.QUEUED);
+        jobs.put(orderId, job);
+        try {
+            executor.execute(() -> run(job, work));
+        } catch (RejectedExecutionException e) {
+            jobs.remove(orderId);
+            usersInFlight.remove(userId);
+            throw new RejectedExecutionException("Checkout queue is full", e);
+        }
+        return job;
+    }
+
+    private void run(CheckoutJob job, Runnable work) {
+        job.processing();
+        try {
+            work.run();
+            job.completed();
+        } catch (RuntimeException e) {
+            job.failed(e.getMessage());
+        } finally {
+            usersInFlight.remove(job.getUserId());
+            finished.add(job.getOrderId());
+            if (finishedCount.incrementAndGet() > jobsKept) {
+                UUID oldest = finished.poll();
+                if (oldest != null) {
+                    jobs.remove(oldest);
+                    finishedCount.decrementAndGet();
+                }
+            }
+        }
+    }
+
+    /** The job that creates the order, or null if there is none (any more). */
+    public CheckoutJob getJob(UUID orderId) {
+        return jobs.get(orderId);
+    }
+
+    @PreDestroy
+    public void close() throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(30, TimeUnit.SECONDS);
+    }
+}
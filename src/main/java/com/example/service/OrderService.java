@@ -1,12 +1,18 @@
 package com.example.service;
 
 import com.example.model.Order;
+import com.example.repository.HeavyHitter;
 import com.example.repository.OrderRepository;
+import com.example.repository.Page;
+import com.example.repository.TimeBucket;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Lazy;
 import org.springframework.stereotype.Service;
 
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
 
 @Service
@@ -28,11 +34,11 @@ public class OrderService extends MainService<Order> {
             throw new IllegalArgumentException("Order not found");
         }
 
-        ArrayList<Order> existingOrders = orderRepository.getOrders();
-        for (Order existingOrder : existingOrders) {
-            if (existingOrder.getId().equals(order.getId())) {
-                throw new IllegalStateException("Order already exists");
-            }
+        if (orderRepository.existsById(order.getId())) {
+            throw new IllegalStateException("Order already exists");
+        }
+        if (order.getCreatedAt() == 0) {
+            order.setCreatedAt(System.currentTimeMillis());
         }
         return orderRepository.addOrder(order);
     }
@@ -41,6 +47,32 @@ public class OrderService extends MainService<Order> {
         return orderRepository.getOrders();
     }
 
+    public Page<Order> getOrderPage(UUID after, int limit){
+        return orderRepository.getOrderPage(after, limit);
+    }
+
+    // granularity is minute, hour or day; the buckets cover from (rounded down) up to, excluding, to.
+    public List<TimeBucket> getOrderStats(Instant from, Instant to, String granularity){
+        if (from == null || to == null || !from.isBefore(to)) {
+            throw new IllegalArgumentException("Invalid time range");
+        }
+        ChronoUnit unit = switch (granularity == null ? "" : granularity.trim().toLowerCase()) {
+            case "minute" -> ChronoUnit.MINUTES;
+            case "hour" -> ChronoUnit.HOURS;
+            case "day" -> ChronoUnit.DAYS;
+            default -> throw new IllegalArgumentException("Granularity must be minute, hour or day");
+        };
+        return orderRepository.getRevenue(from, to, unit);
+    }
+
+    public List<HeavyHitter> getBestSellers(int limit){
+        return orderRepository.getBestSellers(limit);
+    }
+
+    public boolean isProductInOrders(UUID productId){
+        return orderRepository.isProductInOrders(productId);
+    }
+
     public Order getOrderById(UUID orderId){
         if(orderId == null){
             throw  new IllegalArgumentException("Order ID is null");
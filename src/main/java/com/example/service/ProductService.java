@@ -1,14 +1,21 @@
 package com.example.service;
 
-import com.example.model.Cart;
 import com.example.model.Product;
 import com.example.repository.CartRepository;
+import com.example.repository.HeavyHitter;
+import com.example.repository.Page;
 import com.example.repository.ProductRepository;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.springframework.context.annotation.Lazy;
 import org.springframework.data.rest.webmvc.support.ExcerptProjector;
 import org.springframework.stereotype.Service;
 
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
 import java.util.UUID;
 
 @Service
@@ -17,13 +24,25 @@ public class ProductService extends MainService<Product> {
     private final ProductRepository productRepository;
     private final OrderService orderService;
     private final CartRepository cartRepository;
+    private final ObjectMapper objectMapper;
+
+    /** The catalog serialized as JSON, tagged with the catalog version it was read at. */
+    public record RenderedCatalog(String version, byte[] json) {}
+
+    /** A best-selling product: unitsSold may be up to maxOvercount above the true number. */
+    public record ProductSales(Product product, long unitsSold, long maxOvercount) {}
+
+    // Kept until the catalog changes, so polling clients cost one serialization per change.
+    private volatile RenderedCatalog renderedCatalog;
 
 
     //The Constructor with the requried variables mapping the Dependency Injection.
-    public ProductService(ProductRepository productRepository, @Lazy OrderService orderService, @Lazy CartRepository cartRepository) {
+    public ProductService(ProductRepository productRepository, @Lazy OrderService orderService, @Lazy CartRepository cartRepository,
+                          ObjectMapper objectMapper) {
         this.productRepository = productRepository;
         this.orderService = orderService;
         this.cartRepository = cartRepository;
+        this.objectMapper = objectMapper;
     }
     public Product addProduct(Product product){
 
@@ -31,14 +50,28 @@ public class ProductService extends MainService<Product> {
             throw new IllegalArgumentException("Product not found");
         }
 
-        ArrayList<Product> existingProducts = productRepository.getProducts();
-        for (Product existingProduct : existingProducts) {
-            if (existingProduct.getId().equals(product.getId())) {
+        if (productRepository.existsById(product.getId())) {
+            throw new IllegalStateException("Product already exists");
+        }
+
+        return productRepository.addProduct(product);
+    }
+    // Validates the whole batch against the id index before storing any of it, then stores it in one flush.
+    public List<Product> addProducts(List<Product> products){
+        if (products == null || products.isEmpty()) {
+            throw new IllegalArgumentException("No products provided");
+        }
+        Set<UUID> ids = new HashSet<>();
+        for (Product product : products) {
+            if (product == null || product.getId() == null || product.getName() == null || product.getName().isEmpty()) {
+                throw new IllegalArgumentException("Product not found");
+            }
+            if (!ids.add(product.getId()) || productRepository.existsById(product.getId())) {
                 throw new IllegalStateException("Product already exists");
             }
         }
 
-        return productRepository.addProduct(product);
+        return productRepository.addProducts(products);
     }
     public ArrayList<Product> getProducts(){
         ArrayList<Product> products = productRepository.getProducts();
@@ -56,17 +89,85 @@ public class ProductService extends MainService<Product> {
 
         return productRepository.getProductById(productId);
     }
-    public Product updateProduct(UUID productId, String newName, double newPrice) throws Exception {
-        Product newProduct = productRepository.updateProduct(productId, newName, newPrice);
-
-        // Update the product in the cart
-        for (UUID cartId : cartRepository.getCarts().stream().map(cart -> cart.getId()).toList()) {
-            Product oldProduct = productRepository.getProductById(productId);
-            cartRepository.deleteProductFromCart(cartId, oldProduct);
-            cartRepository.addProductToCart(cartId, newProduct);
+    public ArrayList<Product> searchProducts(String query, Double minPrice, Double maxPrice, String sort, int limit){
+        if(limit <= 0){
+            throw new IllegalArgumentException("Limit must be positive");
         }
-
-        return newProduct;
+        if(minPrice != null && maxPrice != null && minPrice > maxPrice){
+            throw new IllegalArgumentException("Minimum price is above maximum price");
+        }
+        return productRepository.search(query, minPrice, maxPrice, sort, limit);
+    }
+    public List<String> suggestProductNames(String prefix, int limit){
+        if(prefix == null || prefix.isBlank()){
+            throw new IllegalArgumentException("Prefix is empty");
+        }
+        if(limit <= 0){
+            throw new IllegalArgumentException("Limit must be positive");
+        }
+        return productRepository.suggestNames(prefix, limit);
+    }
+    // Read from the orders' best-seller sketch; products no longer in the catalog are skipped.
+    public List<ProductSales> getTopProducts(int n){
+        if(n <= 0 || n > 100){
+            throw new IllegalArgumentException("n must be between 1 and 100");
+        }
+        List<ProductSales> top = new ArrayList<>(n);
+        for (HeavyHitter hitter : orderService.getBestSellers(Integer.MAX_VALUE)) {
+            Product product = productRepository.getProductById(hitter.id());
+            if (product != null) {
+                top.add(new ProductSales(product, hitter.count(), hitter.error()));
+                if (top.size() == n) {
+                    break;
+                }
+            }
+        }
+        return top;
+    }
+    // Changes with every change to the catalog; usable as a strong ETag.
+    public String getCatalogVersion(){
+        return productRepository.getChangeVersion();
+    }
+    public RenderedCatalog getRenderedCatalog(){
+        // The version is read before the products: if the catalog changes in between, the bytes
+        // are newer than their version and get rendered again, but are never served for a
+        // version they do not belong to.
+        String version = productRepository.getChangeVersion();
+        RenderedCatalog rendered = renderedCatalog;
+        if (rendered != null && rendered.version().equals(version)) {
+            return rendered;
+        }
+        try {
+            rendered = new RenderedCatalog(version, objectMapper.writeValueAsBytes(getProducts()));
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException("Failed to write JSON", e);
+        }
+        renderedCatalog = rendered;
+        return rendered;
+    }
+    // The product's version without copying it, or null if there is no such product.
+    public Long getProductVersion(UUID productId){
+        return productRepository.findVersion(productId);
+    }
+    // Product versions are only unique within this epoch (see MainRepository#getEpoch).
+    public String getVersionEpoch(){
+        return productRepository.getEpoch();
+    }
+    public Page<Product> getProductPage(UUID after, int limit){
+        return productRepository.getProductPage(after, limit);
+    }
+    public ArrayList<Product> getProductsById(List<UUID> productIds){
+        if(productIds == null || productIds.stream().anyMatch(Objects::isNull)){
+            throw new IllegalArgumentException("Product ID is null");
+        }
+        return productRepository.getProductsById(productIds);
+    }
+    public Product updateProduct(UUID productId, String newName, double newPrice) throws Exception {
+        return updateProduct(productId, newName, newPrice, null);
+    }
+    public Product updateProduct(UUID productId, String newName, double newPrice, Long expectedVersion) throws Exception {
+        // Carts refer to products by id, so they pick up the change when they are next read.
+        return productRepository.updateProduct(productId, newName, newPrice, expectedVersion);
     }
     public void applyDiscount(double discount, ArrayList<UUID> productIds){
         if(discount < 0 || discount > 100){
@@ -79,18 +180,7 @@ public class ProductService extends MainService<Product> {
             throw new IllegalArgumentException("Invalid product ID entered");
         }
 
-        //iterate over carts and for each cart for each product inside it with the same id as my updated product delete it and readd it using the updated product
-        // Iterate over all carts and update the products inside them
         productRepository.applyDiscount(discount, productIds);
-
-        // Update the products in all carts with the new discounted prices
-        for (UUID cartId : cartRepository.getCarts().stream().map(cart -> cart.getId()).toList()) {
-            for (UUID productId : productIds) {
-                Product updatedProduct = productRepository.getProductById(productId);
-                cartRepository.deleteProductFromCart(cartId, updatedProduct);
-                cartRepository.addProductToCart(cartId, updatedProduct);
-            }
-        }
     }
     public void deleteProductById(UUID productId){
 
@@ -100,20 +190,33 @@ public class ProductService extends MainService<Product> {
             throw new IllegalArgumentException();
         }
         // Check if product is linked to orders
-        boolean isProductInOrders = orderService.getOrders().stream()
-                .anyMatch(order -> order.getProducts().stream().anyMatch(p -> p.getId().equals(productId)));
+        boolean isProductInOrders = orderService.isProductInOrders(productId);
 
         if (isProductInOrders) {
             throw new IllegalStateException("Cannot delete product linked to existing orders");
         }
 
-        //delete the product from the cart
-        for (UUID cartId : cartRepository.getCarts().stream().map(cart -> cart.getId()).toList()) {
-            cartRepository.deleteProductFromCart(cartId, product);
-        }
+        //delete the product from the carts holding it
+        cartRepository.removeProductFromCarts(productId);
 
         productRepository.deleteProductById(productId);
     }
+    public void deleteProducts(List<UUID> productIds){
+        if(productIds == null || productIds.isEmpty()){
+            throw new IllegalArgumentException("No products provided");
+        }
+        for (UUID productId : productIds) {
+            getProductById(productId);
+            if (orderService.isProductInOrders(productId)) {
+                throw new IllegalStateException("Cannot delete product linked to existing orders");
+            }
+        }
+
+        for (UUID productId : productIds) {
+            cartRepository.removeProductFromCarts(productId);
+        }
+        productRepository.deleteProducts(productIds);
+    }
 
 
-}
\ No newline at end of file
+}
@@ -4,12 +4,18 @@ import com.example.model.Cart;
 import com.example.model.Order;
 import com.example.model.Product;
 import com.example.model.User;
+import com.example.model.UserStats;
 import com.example.repository.CartRepository;
+import com.example.repository.OrderRepository;
+import com.example.repository.Page;
+import com.example.repository.TransactionLog;
 import com.example.repository.UserRepository;
 import org.springframework.stereotype.Service;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
 
 @Service
@@ -19,13 +25,20 @@ public class UserService extends MainService<User>{
     private final CartService cartService;
     private final OrderService orderService;
     private final CartRepository cartRepository;
+    private final OrderRepository orderRepository;
+    private final TransactionLog transactionLog;
+    private final CheckoutQueue checkoutQueue;
 
     //The Constructor with the required variables mapping the Dependency Injection.
-    public UserService(UserRepository userRepository, CartService cartService, OrderService orderService, CartRepository cartRepository) {
+    public UserService(UserRepository userRepository, CartService cartService, OrderService orderService, CartRepository cartRepository,
+                       OrderRepository orderRepository, TransactionLog transactionLog, CheckoutQueue checkoutQueue) {
         this.userRepository = userRepository;
         this.cartService = cartService;
         this.orderService = orderService;
         this.cartRepository = cartRepository;
+        this.orderRepository = orderRepository;
+        this.transactionLog = transactionLog;
+        this.checkoutQueue = checkoutQueue;
     }
 
     public User addUser(User user){
@@ -33,19 +46,39 @@ public class UserService extends MainService<User>{
             throw new IllegalArgumentException("Invalid user data");
         }
         // Check for duplicate user
-        ArrayList<User> existingUsers = userRepository.getUsers();
-        for (User existingUser : existingUsers) {
-            if (existingUser.getId().equals(user.getId())) {
+        if (userRepository.existsById(user.getId())) {
+            throw new IllegalStateException("User already exists");
+        }
+        user.setStats(UserStats.of(user.getOrders()));
+        return userRepository.addUser(user);
+    }
+
+    // Validates the whole batch against the id index before storing any of it, then stores it in one flush.
+    public List<User> addUsers(List<User> users){
+        if (users == null || users.isEmpty()) {
+            throw new IllegalArgumentException("No users provided");
+        }
+        Set<UUID> ids = new HashSet<>();
+        for (User user : users) {
+            if (user == null || user.getId() == null || user.getName() == null || user.getName().isEmpty()) {
+                throw new IllegalArgumentException("Invalid user data");
+            }
+            if (!ids.add(user.getId()) || userRepository.existsById(user.getId())) {
                 throw new IllegalStateException("User already exists");
             }
+            user.setStats(UserStats.of(user.getOrders()));
         }
-        return userRepository.addUser(user);
+        return userRepository.addUsers(users);
     }
 
     public ArrayList<User> getUsers(){
         return userRepository.getUsers();
     }
 
+    public Page<User> getUserPage(UUID after, int limit){
+        return userRepository.getUserPage(after, limit);
+    }
+
     public User getUserById(UUID userId){
         if (userId == null) {
             throw new IllegalArgumentException("Invalid user ID");
@@ -61,13 +94,72 @@ public class UserService extends MainService<User>{
         return userRepository.getOrdersByUserId(userId);
     }
 
-    //TODO: revisit this method
+    // Order count, spend and latest order, kept up to date by addOrderToUser and removeOrderFromUser.
+    public UserStats getUserStats(UUID userId){
+        UserStats stats = userRepository.getStatsByUserId(userId);
+        if (stats == null) {
+            throw new IllegalArgumentException("User not found");
+        }
+        return stats;
+    }
+
     // The method to add an order to a user. Here the user should empty his cart and calculate everything related to his order and add the new order to his list of orders.
-    // It should call methods from cartservice.
+    // The new order, the user's orders and stats and the emptied cart are stored as one unit of work:
+    // one write-ahead log fsync, all or nothing, reading the user and the cart once each.
     public void addOrderToUser(UUID userId){
+        Cart cart = getCartToCheckOut(userId);
+        Order order = priceOrder(userId, cart);
+
+        // Only the cart that was priced is emptied: if it changed meanwhile, the checkout fails
+        // with a version conflict instead of dropping what was added.
+        transactionLog.begin()
+                .insert(orderRepository, order)
+                .update(userRepository, userId, null, user -> user.addOrder(order))
+                .update(cartRepository, cart.getId(), cart.getVersion(), stored -> stored.getItems().clear())
+                .commit();
+    }
 
-        User user = userRepository.getUserById(userId);
-        if(user == null){
+    /**
+     * Validates and prices the checkout right away, then leaves storing it to the checkout queue.
+     * The products priced now are reserved for the order: the worker takes exactly those out of
+     * the cart, so anything added to the cart meanwhile stays there. If the cart no longer holds
+     * them all (removed, or checked out synchronously meanwhile), the job fails and nothing is stored.
+     */
+    public CheckoutJob submitCheckout(UUID userId){
+        Cart cart = getCartToCheckOut(userId);
+        Order order = priceOrder(userId, cart);
+        return checkoutQueue.submit(order.getId(), userId, () -> transactionLog.begin()
+                .insert(orderRepository, order)
+                .update(userRepository, userId, null, user -> user.addOrder(order))
+                .update(cartRepository, cart.getId(), null, stored -> {
+                    for (Product product : order.getProducts()) {
+                        if (!stored.removeProduct(product.getId())) {
+                            throw new IllegalStateException("Cart no longer holds reserved product: " + product.getId());
+                        }
+                    }
+                })
+                .commit());
+    }
+
+    // Another user's checkout is reported as not found, like one that does not exist.
+    public CheckoutJob getCheckoutStatus(UUID userId, UUID orderId){
+        CheckoutJob job = checkoutQueue.getJob(orderId);
+        if (job != null) {
+            if (!job.getUserId().equals(userId)) {
+                throw new IllegalArgumentException("Checkout not found");
+            }
+            return job;
+        }
+        // Finished long enough ago to be forgotten by the queue, or checked out synchronously.
+        Order order = orderRepository.getOrderById(orderId);
+        if (order == null || !order.getUserId().equals(userId)) {
+            throw new IllegalArgumentException("Checkout not found");
+        }
+        return new CheckoutJob(orderId, order.getUserId(), CheckoutJob.Status.COMPLETED);
+    }
+
+    private Cart getCartToCheckOut(UUID userId){
+        if(!userRepository.existsById(userId)){
             throw new IllegalArgumentException("User not found");
         }
 
@@ -80,22 +172,16 @@ public class UserService extends MainService<User>{
         if(cart.getProducts().size() <= 0){
             throw new IllegalArgumentException("Cart is empty");
         }
+        return cart;
+    }
 
+    // Create a new order
+    private Order priceOrder(UUID userId, Cart cart){
         double totalPrice = 0;
         for (Product product : cart.getProducts()) {
             totalPrice += product.getPrice();
         }
-
-
-        // Create a new order
-        Order order = new Order(userId,totalPrice,cart.getProducts());
-        orderService.addOrder(order);
-
-        //Add the order to the user
-        userRepository.addOrderToUser(userId, order);
-
-        // Empty the cart of the user
-        this.emptyCart(userId);
+        return new Order(userId,totalPrice,cart.getProducts());
     }
 
     //TODO: revisit this method
@@ -107,9 +193,7 @@ public class UserService extends MainService<User>{
         }
 
         if(!cart.getProducts().isEmpty()) {
-            Cart emptyCart = cartService.getCartByUserId(userId);
-            cartService.deleteCartById(emptyCart.getId());
-            cartService.addCart(new Cart(emptyCart.getId(),userId,new ArrayList<>()));
+            cartRepository.emptyCart(cart.getId());
         }
     }
     public void removeOrderFromUser(UUID userId, UUID orderId){
@@ -1,12 +1,17 @@
 package com.example.MiniProject1;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -28,6 +33,7 @@ import org.springframework.test.web.servlet.result.MockMvcResultMatchers;
 
 import com.example.model.Cart;
 import com.example.model.Order;
+import com.example.model.OrderLine;
 import com.example.model.Product;
 import com.example.model.User;
 import com.example.repository.CartRepository;
@@ -42,7 +48,8 @@ import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 @ComponentScan(basePackages = "com.example.*")
-@WebMvcTest
+// The tests write the data files themselves and expect the very next request to see them.
+@WebMvcTest(properties = "spring.application.staleCheckMillis=0")
 class MiniProject1ApplicationTests {
 
 	@Value("${spring.application.userDataPath}")
@@ -359,6 +366,71 @@ class MiniProject1ApplicationTests {
 	}
 
 
+	@Test
+	void testCheckedOutOrderShouldListProductsButStoreLines() throws Exception {
+		User testUser=new User();
+		testUser.setId(UUID.randomUUID());
+		testUser.setName("Test User");
+		Product testProduct=new Product(UUID.randomUUID(), "Test Product", 10.0);
+		Cart cart=new Cart(UUID.randomUUID(), testUser.getId(), new ArrayList<>(List.of(testProduct, testProduct)));
+		addCart(cart);
+		addUser(testUser);
+
+		mockMvc.perform(MockMvcRequestBuilders.post("/user/{userId}/checkout", testUser.getId()))
+				.andExpect(MockMvcResultMatchers.status().isOk());
+		mockMvc.perform(MockMvcRequestBuilders.get("/user/{userId}/orders", testUser.getId()))
+				.andExpect(MockMvcResultMatchers.status().isOk())
+				.andExpect(MockMvcResultMatchers.jsonPath("$[0].products.length()").value(2))
+				.andExpect(MockMvcResultMatchers.jsonPath("$[0].products[0].id").value(testProduct.getId().toString()));
+		assertFalse(Files.readString(Path.of(orderDataPath)).contains("\"products\""), "Orders should be stored as lines only");
+		assertFalse(Files.readString(Path.of(userDataPath)).contains("\"products\""), "Orders embedded in users should be stored as lines only");
+	}
+
+
+	@Test
+	void testSubmitCheckoutEndPoint() throws Exception {
+		User testUser=new User();
+		testUser.setId(UUID.randomUUID());
+		testUser.setName("Test User");
+		Cart cart=new Cart();
+		cart.setId(UUID.randomUUID());
+		cart.setUserId(testUser.getId());
+		cart.setProducts(List.of(new Product(UUID.randomUUID(), "Test Product", 10.0)));
+		addCart(cart);
+		addUser(testUser);
+
+		MvcResult result = mockMvc.perform(MockMvcRequestBuilders.post("/user/{userId}/checkout", testUser.getId()).param("async", "true"))
+				.andExpect(MockMvcResultMatchers.status().isAccepted())
+				.andExpect(MockMvcResultMatchers.header().exists("Location"))
+				.andExpect(MockMvcResultMatchers.jsonPath("$.userId").value(testUser.getId().toString()))
+				.andReturn();
+		String location = result.getResponse().getHeader("Location");
+
+		mockMvc.perform(MockMvcRequestBuilders.get(location))
+				.andExpect(MockMvcResultMatchers.status().isOk())
+				.andExpect(MockMvcResultMatchers.jsonPath("$.orderId").value(objectMapper.readTree(result.getResponse().getContentAsString()).get("orderId").asText()));
+		mockMvc.perform(MockMvcRequestBuilders.get(location.replace(testUser.getId().toString(), UUID.randomUUID().toString())))
+				.andExpect(MockMvcResultMatchers.status().isNotFound());
+	}
+
+
+	@Test
+	void testGetUserStatsEndPoint() throws Exception{
+		User testUser=new User();
+		testUser.setId(UUID.randomUUID());
+		testUser.setName("Test User");
+		Order order = new Order(UUID.randomUUID(), testUser.getId(), 100.0, List.of(new Product(UUID.randomUUID(), "Test Product", 100.0)));
+		testUser.getOrders().add(order);
+		addUser(testUser);
+
+		mockMvc.perform(MockMvcRequestBuilders.get("/user/{userId}/stats", testUser.getId()))
+				.andExpect(MockMvcResultMatchers.status().isOk())
+				.andExpect(MockMvcResultMatchers.jsonPath("$.orderCount").value(1))
+				.andExpect(MockMvcResultMatchers.jsonPath("$.totalSpent").value(100.0))
+				.andExpect(MockMvcResultMatchers.jsonPath("$.lastOrderId").value(order.getId().toString()));
+	}
+
+
 	@Test
 	void testRemoveOrderOfUserEndPoint() throws Exception{
 		User testUser12=new User();
@@ -508,6 +580,27 @@ class MiniProject1ApplicationTests {
 
 
 
+	@Test
+	void testAddProductsBatchAndGetByIdsEndPoint() throws Exception{
+		Product first=new Product(UUID.randomUUID(), "Batch Product 1", 10.0);
+		Product second=new Product(UUID.randomUUID(), "Batch Product 2", 20.0);
+
+		mockMvc.perform(MockMvcRequestBuilders.post("/product/batch")
+				.contentType(MediaType.APPLICATION_JSON)
+				.content(objectMapper.writeValueAsString(List.of(first, second))))
+				.andExpect(MockMvcResultMatchers.status().isOk());
+		assertTrue(getProducts().containsAll(List.of(first, second)), "Every product of the batch should be added");
+
+		MvcResult result= mockMvc.perform(MockMvcRequestBuilders.get("/product")
+				.param("ids", second.getId() + "," + UUID.randomUUID() + "," + first.getId()))
+				.andExpect(MockMvcResultMatchers.status().isOk())
+				.andReturn();
+		List<Product> responseProducts = objectMapper.readValue(result.getResponse().getContentAsString(), new TypeReference<List<Product>>() {});
+		assertEquals(List.of(second, first), responseProducts, "Known products should be returned in the order asked for");
+	}
+
+
+
 	@Test
 	void testGetProductsEndPoint() throws Exception{
 		Product testProduct6=new Product();
@@ -527,6 +620,104 @@ class MiniProject1ApplicationTests {
 	}
 
 
+	@Test
+	void testGetProductPageEndPoint() throws Exception{
+		for (int i = 0; i < 3; i++) {
+			addProduct(new Product(UUID.randomUUID(), "Paged Product " + i, 10.0));
+		}
+
+		MvcResult result= mockMvc.perform(MockMvcRequestBuilders.get("/product/").param("limit", "2"))
+				.andExpect(MockMvcResultMatchers.status().isOk())
+				.andExpect(MockMvcResultMatchers.jsonPath("$.items.length()").value(2))
+				.andReturn();
+		Map<String, Object> first = objectMapper.readValue(result.getResponse().getContentAsString(), new TypeReference<Map<String, Object>>() {});
+		String cursor = (String) first.get("nextCursor");
+		assertNotNull(cursor, "A page followed by more products should carry a cursor");
+
+		MvcResult next= mockMvc.perform(MockMvcRequestBuilders.get("/product/").param("limit", "2").param("after", cursor))
+				.andExpect(MockMvcResultMatchers.status().isOk())
+				.andReturn();
+		Map<String, Object> second = objectMapper.readValue(next.getResponse().getContentAsString(), new TypeReference<Map<String, Object>>() {});
+		for (Object product : (List<?>) second.get("items")) {
+			assertTrue(!((List<?>) first.get("items")).contains(product), "The next page should start after the cursor");
+		}
+	}
+
+
+	@Test
+	void testGetProductsEndPointWithIfNoneMatch() throws Exception{
+		addProduct(new Product(UUID.randomUUID(), "Cached Product", 10.0));
+		MvcResult result= mockMvc.perform(MockMvcRequestBuilders.get("/product/"))
+				.andExpect(MockMvcResultMatchers.status().isOk())
+				.andExpect(MockMvcResultMatchers.header().exists("ETag"))
+				.andReturn();
+		String eTag = result.getResponse().getHeader("ETag");
+
+		mockMvc.perform(MockMvcRequestBuilders.get("/product/").header("If-None-Match", eTag))
+				.andExpect(MockMvcResultMatchers.status().isNotModified());
+
+		productService.addProduct(new Product(UUID.randomUUID(), "New Product", 5.0));
+		mockMvc.perform(MockMvcRequestBuilders.get("/product/").header("If-None-Match", eTag))
+				.andExpect(MockMvcResultMatchers.status().isOk());
+	}
+
+	@Test
+	void testGetProductByIdEndPointWithIfNoneMatch() throws Exception{
+		Product product = new Product(UUID.randomUUID(), "Cached Product", 10.0);
+		addProduct(product);
+		String eTag = mockMvc.perform(MockMvcRequestBuilders.get("/product/{productId}", product.getId()))
+				.andExpect(MockMvcResultMatchers.status().isOk())
+				.andReturn().getResponse().getHeader("ETag");
+		assertTrue(eTag.matches("\"[0-9a-f]+-0\""), "The ETag should be the epoch and the version");
+		mockMvc.perform(MockMvcRequestBuilders.get("/product/{productId}", product.getId()).header("If-None-Match", eTag))
+				.andExpect(MockMvcResultMatchers.status().isNotModified());
+
+		// Deleted and created again with other contents: the old ETag must not match.
+		mockMvc.perform(MockMvcRequestBuilders.delete("/product/delete/{productId}", product.getId()))
+				.andExpect(MockMvcResultMatchers.status().isOk());
+		mockMvc.perform(MockMvcRequestBuilders.post("/product/")
+						.contentType(MediaType.APPLICATION_JSON)
+						.content(objectMapper.writeValueAsString(new Product(product.getId(), "Other Product", 20.0))))
+				.andExpect(MockMvcResultMatchers.status().isOk());
+		mockMvc.perform(MockMvcRequestBuilders.get("/product/{productId}", product.getId()).header("If-None-Match", eTag))
+				.andExpect(MockMvcResultMatchers.status().isOk())
+				.andExpect(MockMvcResultMatchers.jsonPath("$.name").value("Other Product"));
+	}
+
+
+	@Test
+	void testSearchProductsEndPoint() throws Exception{
+		Product cheap = new Product(UUID.randomUUID(), "Searchable Lamp", 5.0);
+		Product dear = new Product(UUID.randomUUID(), "Searchable Desk Lamp", 50.0);
+		addProduct(cheap);
+		addProduct(dear);
+
+		MvcResult result= mockMvc.perform(MockMvcRequestBuilders.get("/product/search")
+				.param("q", "searchable lam")
+				.param("sort", "-price"))
+				.andExpect(MockMvcResultMatchers.status().isOk())
+				.andReturn();
+		List<Product> responseProducts = objectMapper.readValue(result.getResponse().getContentAsString(), new TypeReference<List<Product>>() {});
+		assertEquals(List.of(dear, cheap), responseProducts, "Matching products should be returned by descending price");
+	}
+
+
+	@Test
+	void testGetTopProductsEndPoint() throws Exception{
+		Product product = new Product(UUID.randomUUID(), "Top Product", 5.0);
+		addProduct(product);
+		Order order = new Order(UUID.randomUUID(), UUID.randomUUID(), 0.0, new ArrayList<>());
+		order.setLines(new ArrayList<>(List.of(new OrderLine(product.getId(), 5.0, 100_000))));
+		addOrder(order);
+
+		mockMvc.perform(MockMvcRequestBuilders.get("/product/top").param("n", "1"))
+				.andExpect(MockMvcResultMatchers.status().isOk())
+				.andExpect(MockMvcResultMatchers.jsonPath("$.length()").value(1))
+				.andExpect(MockMvcResultMatchers.jsonPath("$[0].product.id").value(product.getId().toString()))
+				.andExpect(MockMvcResultMatchers.jsonPath("$[0].unitsSold").value(100_000));
+	}
+
+
 	@Test
 	void testGetProductByIdEndPoint() throws Exception{
 		Product testProduct9=new Product();
@@ -564,6 +755,40 @@ class MiniProject1ApplicationTests {
 	}
 
 
+	@Test
+	void testUpdateProductEndPointWithStaleIfMatch() throws Exception{
+		Product testProduct13=new Product(UUID.randomUUID(), "Test Product", 10.0);
+		addProduct(testProduct13);
+		Map<String,Object> body=new HashMap<>();
+		body.put("newName", "UpdatedName");
+		body.put("newPrice", 20.0);
+		mockMvc.perform(MockMvcRequestBuilders.put("/product/update/{id}", testProduct13.getId())
+				.header("If-Match", "\"0\"")
+				.contentType(MediaType.APPLICATION_JSON)
+				.content(objectMapper.writeValueAsString(body)))
+				.andExpect(MockMvcResultMatchers.status().isOk());
+		mockMvc.perform(MockMvcRequestBuilders.put("/product/update/{id}", testProduct13.getId())
+				.header("If-Match", "\"0\"")
+				.contentType(MediaType.APPLICATION_JSON)
+				.content(objectMapper.writeValueAsString(body)))
+				.andExpect(MockMvcResultMatchers.status().isPreconditionFailed());
+
+		// The ETag works as If-Match, but not one from another epoch with the same version.
+		String eTag = mockMvc.perform(MockMvcRequestBuilders.get("/product/{productId}", testProduct13.getId()))
+				.andReturn().getResponse().getHeader("ETag");
+		mockMvc.perform(MockMvcRequestBuilders.put("/product/update/{id}", testProduct13.getId())
+				.header("If-Match", eTag.replaceFirst("\"[0-9a-f]+-", "\"f00d-"))
+				.contentType(MediaType.APPLICATION_JSON)
+				.content(objectMapper.writeValueAsString(body)))
+				.andExpect(MockMvcResultMatchers.status().isPreconditionFailed());
+		mockMvc.perform(MockMvcRequestBuilders.put("/product/update/{id}", testProduct13.getId())
+				.header("If-Match", eTag)
+				.contentType(MediaType.APPLICATION_JSON)
+				.content(objectMapper.writeValueAsString(body)))
+				.andExpect(MockMvcResultMatchers.status().isOk());
+	}
+
+
 	@Test
 	void testApplyDiscountEndPoint() throws Exception{
 		Product testProduct15=new Product();
@@ -693,6 +918,25 @@ class MiniProject1ApplicationTests {
 
 
 
+	@Test
+	void testGetOrderStatsEndPoint() throws Exception{
+		// A minute in the past that no other test creates orders in.
+		Instant minute = Instant.now().truncatedTo(ChronoUnit.MINUTES).minus(3, ChronoUnit.DAYS).minus(137, ChronoUnit.MINUTES);
+		Order order = new Order(UUID.randomUUID(), UUID.randomUUID(), 42.0, new ArrayList<>());
+		order.setCreatedAt(minute.plusSeconds(30).toEpochMilli());
+		addOrder(order);
+
+		mockMvc.perform(MockMvcRequestBuilders.get("/order/stats")
+				.param("from", minute.toString())
+				.param("to", minute.plusSeconds(60).toString())
+				.param("granularity", "minute"))
+				.andExpect(MockMvcResultMatchers.status().isOk())
+				.andExpect(MockMvcResultMatchers.jsonPath("$.length()").value(1))
+				.andExpect(MockMvcResultMatchers.jsonPath("$[0].start").value(minute.toString()))
+				.andExpect(MockMvcResultMatchers.jsonPath("$[0].count").value(1))
+				.andExpect(MockMvcResultMatchers.jsonPath("$[0].total").value(42.0));
+	}
+
 	@Test
 	void testGetOrdersEndPoint() throws Exception{
 
@@ -711,6 +955,33 @@ class MiniProject1ApplicationTests {
 
 
 
+	@Test
+	void testExportOrdersAsNdJsonEndPoint() throws Exception{
+		Order order = new Order(UUID.randomUUID(), UUID.randomUUID(), 10.0, new ArrayList<>());
+		addOrder(order);
+		MvcResult started= mockMvc.perform(MockMvcRequestBuilders.get("/order/")
+				.accept(MediaType.APPLICATION_NDJSON))
+				.andExpect(MockMvcResultMatchers.request().asyncStarted())
+				.andReturn();
+		MvcResult result= mockMvc.perform(MockMvcRequestBuilders.asyncDispatch(started))
+				.andExpect(MockMvcResultMatchers.status().isOk())
+				.andExpect(MockMvcResultMatchers.content().contentTypeCompatibleWith(MediaType.APPLICATION_NDJSON))
+				.andReturn();
+		String[] lines = result.getResponse().getContentAsString().split("\n");
+		assertEquals(getOrders().size(), lines.length, "Every order should be streamed on its own line");
+		boolean found=false;
+		for (String line : lines) {
+			if (objectMapper.readValue(line, Order.class).getId().equals(order.getId())) {
+				found=true;
+			}
+		}
+		assertTrue(found,"Orders should be exported correctly From Endpoint");
+	}
+
+
+
+
+
 	@Test
 	void testGetOrderByIdEndPoint() throws Exception{
 		Order order = new Order(UUID.randomUUID(), UUID.randomUUID(), 10.0, new ArrayList<>());
@@ -2,26 +2,59 @@ package com.example.MiniProject1;
 
 import com.example.model.Cart;
 import com.example.model.Order;
+import com.example.model.OrderLine;
 import com.example.model.Product;
 import com.example.model.User;
+import com.example.model.UserStats;
 import com.example.repository.CartRepository;
+import com.example.repository.EncodingTool;
+import com.example.repository.MainRepository;
 import com.example.repository.OrderRepository;
+import com.example.repository.Page;
 import com.example.repository.ProductRepository;
+import com.example.repository.ReshardTool;
+import com.example.repository.TimeBucket;
+import com.example.repository.TransactionLog;
+import com.example.repository.UnitOfWork;
 import com.example.repository.UserRepository;
+import com.example.repository.VersionConflictException;
 import com.example.service.CartService;
+import com.example.service.CheckoutJob;
+import com.example.service.CheckoutQueue;
 import com.example.service.OrderService;
 import com.example.service.ProductService;
 import com.example.service.UserService;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Tag;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.test.context.SpringBootTest;
-
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -52,6 +85,15 @@ class ServiceTests {
     @Autowired
     private OrderRepository orderRepository;
 
+    @Autowired
+    private TransactionLog transactionLog;
+
+    @Autowired
+    private CheckoutQueue checkoutQueue;
+
+    @Value("${spring.application.checkoutWorkers}")
+    private int checkoutWorkers;
+
     private UUID userId;
     private User testUser;
     private Cart testCart;
@@ -203,6 +245,35 @@ class ServiceTests {
         assertEquals(2, retrievedUser.getOrders().get(0).getProducts().size(), "Order should have two products");
     }
 
+    @Tag("user")
+    @Test
+    void getUserStats_shouldFollowCheckoutsAndRemovals() {
+        UUID userId = UUID.randomUUID();
+        UUID pastOrderId = UUID.randomUUID();
+        Order pastOrder = new Order(pastOrderId, userId, 20.0, new ArrayList<>());
+        orderService.addOrder(pastOrder);
+        userService.addUser(new User(userId, "John Smith", new ArrayList<>(List.of(pastOrder))));
+        assertEquals(1, userService.getUserStats(userId).getOrderCount(), "Stats should count the orders a user is created with");
+
+        cartService.addCart(new Cart(UUID.randomUUID(), userId, new ArrayList<>(List.of(
+                new Product(UUID.randomUUID(), "Product A", 50.0),
+                new Product(UUID.randomUUID(), "Product B", 100.0)))));
+        userService.addOrderToUser(userId);
+        UUID newOrderId = userService.getOrdersByUserId(userId).get(1).getId();
+
+        UserStats stats = userService.getUserStats(userId);
+        assertEquals(2, stats.getOrderCount(), "Checkout should count the new order");
+        assertEquals(170.0, stats.getTotalSpent(), 1e-9, "Checkout should add the order total");
+        assertEquals(newOrderId, stats.getLastOrderId(), "The new order should be the last one");
+
+        userService.removeOrderFromUser(userId, newOrderId);
+        stats = userService.getUserStats(userId);
+        assertEquals(1, stats.getOrderCount(), "Removing an order should uncount it");
+        assertEquals(20.0, stats.getTotalSpent(), 1e-9, "Removing an order should subtract its total");
+        assertEquals(pastOrderId, stats.getLastOrderId(), "The last remaining order should become the last one");
+        assertThrows(IllegalArgumentException.class, () -> userService.getUserStats(UUID.randomUUID()));
+    }
+
     @Tag("user")
     @Test
     void addOrderToUser_whenCartNotFound_shouldThrowException() {
@@ -216,6 +287,121 @@ class ServiceTests {
         assertThrows(IllegalArgumentException.class, () -> userService.addOrderToUser(nonExistentUserId));
     }
 
+    @Tag("user")
+    @Test
+    void addOrderToUser_shouldStoreOrderUserAndCartTogether() {
+        Cart cart = new Cart(UUID.randomUUID(), userId, new ArrayList<>(List.of(new Product(UUID.randomUUID(), "Product A", 25.0))));
+        cartService.addCart(cart);
+
+        userService.addOrderToUser(userId);
+
+        List<Order> orders = userService.getOrdersByUserId(userId);
+        assertEquals(1, orders.size(), "The user should list the new order");
+        assertNotNull(orderService.getOrderById(orders.get(0).getId()), "The order should be stored");
+        assertEquals(25.0, userService.getUserStats(userId).getTotalSpent(), 1e-9, "The stats should count the order");
+        assertTrue(cartService.getCartByUserId(userId).getProducts().isEmpty(), "The cart should be empty");
+    }
+
+    @Tag("user")
+    @Test
+    void submitCheckout_shouldOrderOnlyTheReservedItems() throws InterruptedException {
+        Product ordered = new Product(UUID.randomUUID(), "Product A", 25.0);
+        Cart cart = new Cart(UUID.randomUUID(), userId, new ArrayList<>(List.of(ordered, ordered)));
+        cartService.addCart(cart);
+
+        CheckoutJob job = userService.submitCheckout(userId);
+        Product addedMeanwhile = new Product(UUID.randomUUID(), "Product B", 5.0);
+        cartService.addProductToCart(cart.getId(), addedMeanwhile);
+        for (int i = 0; i < 200 && userService.getCheckoutStatus(userId, job.getOrderId()).getStatus() != CheckoutJob.Status.COMPLETED; i++) {
+            Thread.sleep(10);
+        }
+
+        assertEquals(CheckoutJob.Status.COMPLETED, userService.getCheckoutStatus(userId, job.getOrderId()).getStatus());
+        assertEquals(50.0, orderService.getOrderById(job.getOrderId()).getTotalPrice(), 1e-9, "The order should hold the reserved items");
+        assertEquals(1, userService.getOrdersByUserId(userId).size(), "The user should list the new order");
+        List<Product> left = cartService.getCartByUserId(userId).getProducts();
+        assertEquals(1, left.size(), "Only the ordered items should leave the cart");
+        assertEquals(addedMeanwhile.getId(), left.get(0).getId());
+        assertThrows(IllegalArgumentException.class, () -> userService.getCheckoutStatus(userId, UUID.randomUUID()));
+        assertThrows(IllegalArgumentException.class, () -> userService.getCheckoutStatus(UUID.randomUUID(), job.getOrderId()),
+                "Another user should not see the checkout");
+    }
+
+    @Tag("user")
+    @Test
+    void submitCheckout_whenReservedItemIsRemovedMeanwhile_shouldFailAndStoreNothing() throws InterruptedException {
+        Product ordered = new Product(UUID.randomUUID(), "Product A", 25.0);
+        Cart cart = new Cart(UUID.randomUUID(), userId, new ArrayList<>(List.of(ordered)));
+        cartService.addCart(cart);
+
+        // Every worker is kept busy so the checkout is still queued when the cart changes.
+        CountDownLatch release = new CountDownLatch(1);
+        CheckoutJob job;
+        try {
+            for (int i = 0; i < checkoutWorkers; i++) {
+                checkoutQueue.submit(UUID.randomUUID(), UUID.randomUUID(), () -> {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+            }
+            job = userService.submitCheckout(userId);
+            cartService.deleteProductFromCart(cart.getId(), ordered);
+        } finally {
+            release.countDown();
+        }
+        for (int i = 0; i < 200 && userService.getCheckoutStatus(userId, job.getOrderId()).getStatus() != CheckoutJob.Status.FAILED; i++) {
+            Thread.sleep(10);
+        }
+
+        assertEquals(CheckoutJob.Status.FAILED, userService.getCheckoutStatus(userId, job.getOrderId()).getStatus(), "A checkout whose items left the cart should fail");
+        assertThrows(IllegalArgumentException.class, () -> orderService.getOrderById(job.getOrderId()), "No order should be stored");
+        assertTrue(userService.getOrdersByUserId(userId).isEmpty(), "The user should be left unchanged");
+    }
+
+    @Tag("user")
+    @Test
+    void unitOfWork_whenOneChangeFails_shouldStoreNothing() {
+        Order order = new Order(UUID.randomUUID(), userId, 10.0, List.of());
+        orderService.addOrder(order);
+
+        UnitOfWork work = transactionLog.begin()
+                .update(userRepository, userId, null, user -> user.addOrder(order))
+                .insert(orderRepository, order);
+        assertThrows(IllegalStateException.class, work::commit, "Inserting an existing order should fail");
+        assertTrue(userService.getOrdersByUserId(userId).isEmpty(), "The user should be left unchanged");
+    }
+
+    @Tag("user")
+    @Test
+    void transactionLog_recover_shouldCompleteOnlyUnitsNotYetStored() throws Exception {
+        User current = userRepository.getUserById(userId);
+        current.setName("Current Name");
+        userRepository.saveUser(current);
+        User stale = new User(userId, "Stale Name", new ArrayList<>());
+        stale.setVersion(current.getVersion() - 1);
+        Order lost = new Order(UUID.randomUUID(), userId, 10.0, List.of());
+
+        ObjectMapper mapper = new ObjectMapper();
+        Path log = Files.createTempFile("transactions", ".log");
+        Files.writeString(log, "{\"changes\":[{\"repository\":\"order\",\"entity\":" + mapper.writeValueAsString(lost)
+                + "},{\"repository\":\"user\",\"entity\":" + mapper.writeValueAsString(stale) + "}]}\n{\"changes\":[{\"rep");
+        TransactionLog recovering = new TransactionLog(List.of(orderRepository, userRepository));
+        ReflectionTestUtils.setField(recovering, "logPath", log.toString());
+        try {
+            recovering.recover();
+        } finally {
+            recovering.close();
+        }
+
+        assertNotNull(orderRepository.getOrderById(lost.getId()), "A logged change missing from storage should be stored");
+        assertEquals("Current Name", userRepository.getUserById(userId).getName(), "A logged change older than the stored entity should be skipped");
+        assertEquals(0, Files.size(log), "The log should be emptied once replayed");
+        Files.delete(log);
+    }
+
     // 6) Empty Cart Tests
     @Tag("user")
     @Test
@@ -418,6 +604,14 @@ class ServiceTests {
         assertNull(cart, "If the user is nonexistent, the method should return null.");
     }
 
+    @Tag("cart")
+    @Test
+    void getCartByUserId_afterCartDeleted_shouldReturnNull() {
+        cartService.addCart(testCart);
+        cartService.deleteCartById(testCart.getId());
+        assertNull(cartService.getCartByUserId(userId), "A deleted cart should no longer be found by its user.");
+    }
+
     @Tag("cart")
     @Test
     void getCartByUserId_withNullUserId_shouldReturnNull() {
@@ -451,6 +645,50 @@ class ServiceTests {
                 "Should throw an exception if product is null");
     }
 
+    @Tag("cart")
+    @Test
+    void addProductToCart_concurrently_shouldKeepEveryProduct() throws Exception {
+        cartService.addCart(testCart);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            Product product = new Product(UUID.randomUUID(), "Concurrent Product " + i, i);
+            threads.add(Thread.ofPlatform().start(() -> cartService.addProductToCart(testCart.getId(), product)));
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(8, cartService.getCartById(testCart.getId()).getProducts().size(),
+                "No concurrent add should be lost.");
+    }
+
+    @Tag("cart")
+    @Test
+    void addProductToCart_twice_shouldStoreOneLineWithQuantity() {
+        cartService.addCart(testCart);
+        cartService.addProductToCart(testCart.getId(), testProduct);
+        cartService.addProductToCart(testCart.getId(), testProduct);
+        Cart cart = cartService.getCartById(testCart.getId());
+        assertEquals(1, cart.getItems().size(), "The same product should share a line");
+        assertEquals(2, cart.getItems().get(0).getQuantity(), "The line should count both adds");
+        assertEquals(2, cart.getProducts().size(), "Products should repeat by quantity");
+    }
+
+    @Tag("cart")
+    @Test
+    void updateProduct_shouldShowInCartWithoutRewritingIt() throws Exception {
+        productService.addProduct(testProduct);
+        cartService.addCart(testCart);
+        cartService.addProductToCart(testCart.getId(), testProduct);
+        long cartVersion = cartRepository.getCartById(testCart.getId()).getVersion();
+
+        productService.updateProduct(testProduct.getId(), "Renamed Product", 12.5);
+
+        Cart cart = cartService.getCartById(testCart.getId());
+        assertEquals(cartVersion, cart.getVersion(), "Product edits should not touch carts");
+        assertEquals("Renamed Product", cart.getProducts().get(0).getName(), "Cart should show the current name");
+        assertEquals(12.5, cart.getProducts().get(0).getPrice(), "Cart should show the current price");
+    }
+
     // 6) Delete Product from Cart Tests
     @Tag("cart")
     @Test
@@ -588,6 +826,130 @@ class ServiceTests {
                 "Should throw an exception if product ID is null");
     }
 
+    @Tag("product")
+    @Test
+    void addProducts_withBatch_shouldAddAll() {
+        List<Product> batch = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            batch.add(new Product(UUID.randomUUID(), "Batch Product " + i, i));
+        }
+        productService.addProducts(batch);
+        assertEquals(batch, productService.getProductsById(batch.stream().map(Product::getId).toList()),
+                "Every product of the batch should be stored");
+    }
+
+    @Tag("product")
+    @Test
+    void addProducts_withExistingProduct_shouldAddNone() {
+        productService.addProduct(testProduct);
+        Product fresh = new Product(UUID.randomUUID(), "Fresh Product", 5.0);
+        assertThrows(IllegalStateException.class, () -> productService.addProducts(List.of(fresh, testProduct)),
+                "Should refuse a batch holding an existing product");
+        assertFalse(productRepository.existsById(fresh.getId()), "Nothing of a refused batch should be stored");
+    }
+
+    @Tag("product")
+    @Test
+    void deleteProducts_withValidIds_shouldDeleteAll() {
+        Product other = new Product(UUID.randomUUID(), "Other Product", 5.0);
+        productService.addProducts(List.of(testProduct, other));
+        productService.deleteProducts(List.of(testProduct.getId(), other.getId()));
+        assertTrue(productService.getProductsById(List.of(testProduct.getId(), other.getId())).isEmpty(),
+                "Every listed product should be deleted");
+    }
+
+    @Tag("product")
+    @Test
+    void getProductPage_walkingAllPages_shouldSeeEveryProductOnce() {
+        productRepository.clearProducts();
+        List<Product> batch = new ArrayList<>();
+        for (int i = 0; i < 25; i++) {
+            batch.add(new Product(UUID.randomUUID(), "Paged Product " + i, i));
+        }
+        productService.addProducts(batch);
+
+        List<UUID> seen = new ArrayList<>();
+        UUID cursor = null;
+        do {
+            Page<Product> page = productService.getProductPage(cursor, 10);
+            assertTrue(page.items().size() <= 10, "A page should hold at most limit products");
+            page.items().forEach(product -> seen.add(product.getId()));
+            if (cursor == null) {
+                // Inserted while paging: must not shift or repeat the pages that follow.
+                productService.addProduct(new Product(UUID.randomUUID(), "Late Product", 1.0));
+            }
+            cursor = page.nextCursor();
+        } while (cursor != null);
+
+        assertEquals(seen.size(), new HashSet<>(seen).size(), "No product should be seen twice");
+        assertTrue(seen.containsAll(batch.stream().map(Product::getId).toList()), "Every product should be seen");
+    }
+
+    @Tag("product")
+    @Test
+    void searchProducts_byWordsAndPrice_shouldFollowChanges() throws Exception {
+        String word = "zq" + UUID.randomUUID().toString().substring(0, 8);
+        Product shirt = new Product(UUID.randomUUID(), "Red " + word + " Shirt", 30.0);
+        Product socks = new Product(UUID.randomUUID(), "Red " + word + " Socks", 10.0);
+        Product hat = new Product(UUID.randomUUID(), "Blue " + word + " Hat", 20.0);
+        productService.addProducts(List.of(shirt, socks, hat));
+
+        assertEquals(List.of(socks, shirt), productService.searchProducts("red " + word.substring(0, 5), null, null, "price", 10),
+                "Every query word should match a name word by prefix");
+        assertEquals(List.of(hat), productService.searchProducts(word, 15.0, 25.0, null, 10),
+                "Only products in the price range should match");
+
+        productService.updateProduct(hat.getId(), "Red " + word + " Hat", 20.0);
+        productService.applyDiscount(50, new ArrayList<>(List.of(shirt.getId())));
+        productService.deleteProductById(socks.getId());
+        assertEquals(List.of(shirt, hat), productService.searchProducts("red " + word, null, null, "price", 10),
+                "The indexes should follow updates, discounts and deletes");
+    }
+
+    @Tag("product")
+    @Test
+    void getTopProducts_shouldRankByUnitsSoldAndFollowDeletes() {
+        Product best = new Product(UUID.randomUUID(), "Best Seller", 1.0);
+        Product second = new Product(UUID.randomUUID(), "Runner Up", 1.0);
+        productService.addProducts(List.of(best, second));
+        Order bulk = new Order(UUID.randomUUID(), userId, 0.0, List.of());
+        bulk.setLines(new ArrayList<>(List.of(new OrderLine(best.getId(), 1.0, 1_000_000), new OrderLine(second.getId(), 1.0, 999_999))));
+        orderService.addOrder(bulk);
+
+        List<ProductService.ProductSales> top = productService.getTopProducts(2);
+        assertEquals(List.of(best.getId(), second.getId()), top.stream().map(sales -> sales.product().getId()).toList(),
+                "Products should be ranked by units sold");
+        assertTrue(top.get(0).unitsSold() >= 1_000_000 && top.get(0).unitsSold() - top.get(0).maxOvercount() <= 1_000_000,
+                "The true count should lie within the reported bounds");
+
+        orderService.deleteOrderById(bulk.getId());
+        assertTrue(productService.getTopProducts(2).stream().noneMatch(sales -> sales.product().getId().equals(best.getId())),
+                "Deleted orders should no longer count");
+        assertThrows(IllegalArgumentException.class, () -> productService.getTopProducts(0));
+    }
+
+    @Tag("product")
+    @Test
+    void suggestProductNames_shouldRankShortestFirstAndFollowChanges() throws Exception {
+        String word = "zq" + UUID.randomUUID().toString().substring(0, 8);
+        Product lamp = new Product(UUID.randomUUID(), word + " Lamp", 30.0);
+        Product lampshade = new Product(UUID.randomUUID(), word + " Lampshade", 10.0);
+        Product desk = new Product(UUID.randomUUID(), word + " Desk", 20.0);
+        productService.addProducts(List.of(lampshade, desk, lamp));
+
+        assertEquals(List.of(word + " Desk", word + " Lamp", word + " Lampshade"), productService.suggestProductNames(word, 10),
+                "Shorter names should come first, ties alphabetically");
+        assertEquals(List.of(word + " Lamp"), productService.suggestProductNames(word.toUpperCase() + " l", 1),
+                "Prefixes should match regardless of case and respect the limit");
+
+        productService.updateProduct(desk.getId(), word + " Lantern", 20.0);
+        productService.deleteProductById(lamp.getId());
+        assertEquals(List.of(word + " Lantern", word + " Lampshade"), productService.suggestProductNames(word + " la", 10),
+                "Suggestions should follow updates and deletes");
+        assertThrows(IllegalArgumentException.class, () -> productService.suggestProductNames(" ", 10),
+                "A blank prefix should be rejected");
+    }
+
     // 4) Update Product Tests
     @Tag("product")
     @Test
@@ -607,6 +969,32 @@ class ServiceTests {
                 "Should throw an exception if product is not found");
     }
 
+    @Tag("product")
+    @Test
+    void updateProduct_withStaleVersion_shouldThrowConflict() throws Exception {
+        productService.addProduct(testProduct);
+        long added = productService.getProductVersion(testProduct.getId());
+        Product updatedProduct = productService.updateProduct(testProduct.getId(), "Updated Product", 15.0, added);
+        assertEquals(added + 1, updatedProduct.getVersion(), "Each update should bump the version");
+
+        assertThrows(VersionConflictException.class, () -> productService.updateProduct(testProduct.getId(), "Stale Product", 20.0, added),
+                "Should refuse an update based on an old version");
+        assertEquals("Updated Product", productService.getProductById(testProduct.getId()).getName(), "Stale update should not be applied");
+    }
+
+    @Tag("product")
+    @Test
+    void addProduct_afterDeletingTheSameId_shouldNotReuseAVersion() throws Exception {
+        productService.addProduct(testProduct);
+        productService.updateProduct(testProduct.getId(), "Updated Product", 15.0);
+        long deleted = productService.getProductVersion(testProduct.getId());
+        productService.deleteProductById(testProduct.getId());
+
+        productService.addProduct(new Product(testProduct.getId(), "Another Product", 30.0));
+        assertTrue(productService.getProductVersion(testProduct.getId()) > deleted,
+                "A product created again should get a version it never had, so no version names two contents");
+    }
+
     @Tag("product")
     @Test
     void updateProduct_withInvalidData_shouldThrowException() {
@@ -757,6 +1145,38 @@ class ServiceTests {
                 "Should throw an exception if order ID is null");
     }
 
+    @Tag("order")
+    @Test
+    void getOrderStats_shouldBucketOrdersByCreationTime() {
+        // A minute in the past that no other test creates orders in.
+        Instant minute = Instant.now().truncatedTo(ChronoUnit.MINUTES).minus(2, ChronoUnit.DAYS).minus(137, ChronoUnit.MINUTES);
+        Order first = new Order(UUID.randomUUID(), userId, 10.0, List.of());
+        first.setCreatedAt(minute.toEpochMilli());
+        Order second = new Order(UUID.randomUUID(), userId, 20.0, List.of());
+        second.setCreatedAt(minute.plusSeconds(59).toEpochMilli());
+        Order third = new Order(UUID.randomUUID(), userId, 5.0, List.of());
+        third.setCreatedAt(minute.plusSeconds(60).toEpochMilli());
+        orderService.addOrder(first);
+        orderService.addOrder(second);
+        orderService.addOrder(third);
+
+        List<TimeBucket> buckets = orderService.getOrderStats(minute, minute.plus(2, ChronoUnit.MINUTES), "minute");
+        assertEquals(List.of(new TimeBucket(minute, 2, 30.0), new TimeBucket(minute.plusSeconds(60), 1, 5.0)), buckets,
+                "Orders should be counted in the minute they were created");
+
+        orderService.deleteOrderById(second.getId());
+        assertEquals(new TimeBucket(minute, 1, 10.0), orderService.getOrderStats(minute, minute.plusSeconds(1), "minute").get(0),
+                "Deleting an order should take it out of its bucket");
+        assertEquals(24, orderService.getOrderStats(minute.truncatedTo(ChronoUnit.HOURS), minute.truncatedTo(ChronoUnit.HOURS).plus(1, ChronoUnit.DAYS), "hour").size(),
+                "There should be one bucket per hour, empty ones included");
+
+        assertThrows(IllegalArgumentException.class, () -> orderService.getOrderStats(minute, minute, "minute"));
+        assertThrows(IllegalArgumentException.class, () -> orderService.getOrderStats(minute, minute.plusSeconds(60), "week"));
+        assertThrows(IllegalArgumentException.class,
+                () -> orderService.getOrderStats(minute.minus(30, ChronoUnit.DAYS), minute, "minute"),
+                "Minute buckets should only reach back a week");
+    }
+
     // 4) Delete Order Tests
     @Tag("order")
     @Test
@@ -808,4 +1228,454 @@ class ServiceTests {
         }
         assertFalse(orderInUser, "User should have no orders");
     }
+
+    // ------------------------ Storage Tests -------------------------
+    // Each test opens repositories of its own over a temporary data file, configured like the
+    // spring.application.* settings; closing one and opening another over the same file is a restart.
+
+    private UserRepository openUserRepository(Path dataPath, String... settings) {
+        UserRepository repository = new UserRepository();
+        ReflectionTestUtils.setField(repository, "userDataPath", dataPath.toString());
+        return open(repository, null, settings);
+    }
+
+    private <R extends MainRepository<?>> R open(R repository, MeterRegistry meterRegistry, String... settings) {
+        MockEnvironment environment = new MockEnvironment();
+        for (int i = 0; i < settings.length; i += 2) {
+            environment.setProperty("spring.application." + settings[i], settings[i + 1]);
+        }
+        ReflectionTestUtils.setField(repository, "environment", environment);
+        if (meterRegistry != null) {
+            ReflectionTestUtils.setField(repository, "meterRegistry", meterRegistry);
+        }
+        repository.loadCache();
+        return repository;
+    }
+
+    private static List<User> sampleUsers(int count) {
+        List<User> users = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            UUID id = UUID.randomUUID();
+            Product product = new Product(UUID.randomUUID(), "Product " + i, 10.0 + i);
+            users.add(new User(id, "User " + i, new ArrayList<>(List.of(new Order(UUID.randomUUID(), id, 10.0 + i, List.of(product))))));
+        }
+        return users;
+    }
+
+    // Everything stored about each entity, by id, so stores that keep another order compare equal.
+    private static Map<String, JsonNode> contents(List<?> entities) {
+        ObjectMapper mapper = new ObjectMapper();
+        Map<String, JsonNode> byId = new HashMap<>();
+        for (Object entity : entities) {
+            JsonNode tree = mapper.valueToTree(entity);
+            byId.put(tree.get("id").asText(), tree);
+        }
+        return byId;
+    }
+
+    private static void awaitTrue(BooleanSupplier condition, String message) throws InterruptedException {
+        for (int i = 0; i < 500 && !condition.getAsBoolean(); i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(condition.getAsBoolean(), message);
+    }
+
+    // 1) Journal Tests
+    @Tag("storage")
+    @Test
+    void journal_shouldAppendChangesAndReplayThemOnRestart(@TempDir Path dir) throws Exception {
+        Path dataPath = dir.resolve("users.json");
+        UserRepository repository = openUserRepository(dataPath, "storageMode", "journal");
+        List<User> users = sampleUsers(3);
+        users.forEach(repository::addUser);
+        users.get(0).setName("Renamed");
+        repository.saveUser(users.get(0));
+        repository.deleteUserById(users.get(1).getId());
+        Map<String, JsonNode> stored = contents(repository.getUsers());
+        repository.close();
+
+        assertFalse(Files.exists(dataPath), "Changes should be appended, not rewrite a snapshot");
+        assertEquals(5, Files.readAllLines(dir.resolve("users.json.journal")).size(), "There should be one record per change");
+        UserRepository restarted = openUserRepository(dataPath, "storageMode", "journal");
+        assertEquals(stored, contents(restarted.getUsers()), "Replaying the journal should rebuild every change");
+        restarted.close();
+    }
+
+    @Tag("storage")
+    @Test
+    void journal_whenLastRecordIsTorn_shouldKeepEveryCompleteRecord(@TempDir Path dir) throws Exception {
+        Path dataPath = dir.resolve("users.json");
+        UserRepository repository = openUserRepository(dataPath, "storageMode", "journal");
+        sampleUsers(2).forEach(repository::addUser);
+        Map<String, JsonNode> stored = contents(repository.getUsers());
+        repository.close();
+        // A crash in the middle of an append leaves half a record behind.
+        Files.writeString(dir.resolve("users.json.journal"), "{\"op\":\"INSERT\",\"id\":\"" + UUID.randomUUID() + "\",\"entity\":{\"na",
+                StandardOpenOption.APPEND);
+
+        repository = openUserRepository(dataPath, "storageMode", "journal");
+        assertEquals(stored, contents(repository.getUsers()), "The torn record should be ignored");
+        repository.addUser(sampleUsers(1).get(0));
+        stored = contents(repository.getUsers());
+        repository.close();
+
+        repository = openUserRepository(dataPath, "storageMode", "journal");
+        assertEquals(stored, contents(repository.getUsers()), "A record appended after the cut should not be lost with the torn one");
+        repository.close();
+    }
+
+    @Tag("storage")
+    @Test
+    void journal_whenOverMaxRecords_shouldRollIntoSnapshot(@TempDir Path dir) throws Exception {
+        Path dataPath = dir.resolve("users.json");
+        Path journal = dir.resolve("users.json.journal");
+        UserRepository repository = openUserRepository(dataPath, "storageMode", "journal", "journalMaxRecords", "3");
+        sampleUsers(5).forEach(repository::addUser);
+
+        awaitTrue(() -> Files.exists(dataPath) && !Files.exists(dir.resolve("users.json.journal.compacting")),
+                "A journal over journalMaxRecords should be folded into a new snapshot");
+        assertTrue(new ObjectMapper().readTree(dataPath.toFile()).size() >= 3, "The snapshot should hold the rolled records");
+        assertTrue(!Files.exists(journal) || Files.readAllLines(journal).size() < 3, "The rolled records should leave the journal");
+        Map<String, JsonNode> stored = contents(repository.getUsers());
+        repository.close();
+
+        repository = openUserRepository(dataPath, "storageMode", "journal", "journalMaxRecords", "3");
+        assertEquals(stored, contents(repository.getUsers()), "Snapshot plus journal should hold every user");
+        repository.close();
+    }
+
+    // 2) Group Commit Tests
+    @Tag("storage")
+    @Test
+    void groupCommit_shouldStoreConcurrentWritesInEveryDurability(@TempDir Path dir) throws Exception {
+        for (String durability : List.of("sync", "batched(20)", "async")) {
+            for (String storageMode : List.of("snapshot", "journal")) {
+                Path dataPath = dir.resolve(durability.replaceAll("\\W", "") + "-" + storageMode + "-users.json");
+                UserRepository repository = openUserRepository(dataPath, "durability", durability, "storageMode", storageMode);
+                sampleUsers(40).parallelStream().forEach(repository::addUser);
+                Map<String, JsonNode> stored = contents(repository.getUsers());
+                // Closing flushes whatever async mode still has queued.
+                repository.close();
+
+                repository = openUserRepository(dataPath, "durability", durability, "storageMode", storageMode);
+                assertEquals(40, stored.size());
+                assertEquals(stored, contents(repository.getUsers()), "Every write should be stored with " + durability + " in " + storageMode + " mode");
+                repository.close();
+            }
+        }
+    }
+
+    @Tag("storage")
+    @Test
+    void groupCommit_whenFlushFails_shouldFailTheWriteAndKeepStoredData(@TempDir Path dir) throws Exception {
+        Path dataPath = dir.resolve("users.json");
+        UserRepository repository = openUserRepository(dataPath, "durability", "batched(5)");
+        User stored = sampleUsers(1).get(0);
+        repository.addUser(stored);
+        // Block the file a snapshot rewrite goes through, as a full disk or a crash mid-write would.
+        Path temp = dir.resolve("users.json.tmp");
+        Files.createDirectory(temp);
+
+        User lost = sampleUsers(1).get(0);
+        assertThrows(RuntimeException.class, () -> repository.addUser(lost), "A write that could not be flushed should fail");
+        assertNull(repository.getUserById(lost.getId()), "A write that never reached the file should not be served");
+        assertNotNull(repository.getUserById(stored.getId()), "What was stored before should still be there");
+
+        Files.delete(temp);
+        repository.addUser(lost);
+        Map<String, JsonNode> all = contents(repository.getUsers());
+        repository.close();
+
+        UserRepository restarted = openUserRepository(dataPath, "durability", "batched(5)");
+        assertEquals(2, all.size());
+        assertEquals(all, contents(restarted.getUsers()), "Writes after the failure should be stored again");
+        restarted.close();
+    }
+
+    // 3) Binary Product Snapshot Tests
+    private ProductRepository openProductRepository(Path dataPath, String storageFormat) {
+        ProductRepository repository = new ProductRepository();
+        ReflectionTestUtils.setField(repository, "productDataPath", dataPath.toString());
+        return open(repository, null, "productStorageFormat", storageFormat);
+    }
+
+    @Tag("storage")
+    @Test
+    void binaryProductFormat_shouldRoundTripAndMigrateBothWays(@TempDir Path dir) throws Exception {
+        Path dataPath = dir.resolve("products.json");
+        ProductRepository repository = openProductRepository(dataPath, "json");
+        repository.addProduct(new Product(UUID.randomUUID(), "Laptop", 999.5));
+        repository.addProduct(new Product(UUID.randomUUID(), "Tasse für Kaffee ☕", 7.25));
+        Map<String, JsonNode> stored = contents(repository.getProducts());
+        repository.close();
+
+        // The JSON file is read as it is and becomes binary on the next write.
+        repository = openProductRepository(dataPath, "binary");
+        assertEquals(stored, contents(repository.getProducts()), "A JSON catalog should be read in binary mode");
+        Product updated = repository.getProductById(repository.getProducts().get(0).getId());
+        repository.updateProduct(updated.getId(), updated.getName(), 899.0);
+        stored = contents(repository.getProducts());
+        repository.close();
+        assertEquals("PRD1", new String(Files.readAllBytes(dataPath), 0, 4, StandardCharsets.US_ASCII), "The catalog should be rewritten in the binary format");
+
+        repository = openProductRepository(dataPath, "binary");
+        assertEquals(stored, contents(repository.getProducts()), "Names, prices and versions should survive the binary format");
+        repository.close();
+
+        repository = openProductRepository(dataPath, "json");
+        assertEquals(stored, contents(repository.getProducts()), "A binary catalog should be read in JSON mode");
+        repository.deleteProductById(updated.getId());
+        stored = contents(repository.getProducts());
+        repository.close();
+        assertEquals('[', (char) Files.readAllBytes(dataPath)[0], "The catalog should be rewritten as JSON");
+
+        repository = openProductRepository(dataPath, "json");
+        assertEquals(stored, contents(repository.getProducts()));
+        repository.close();
+    }
+
+    // 4) Data File Watcher Tests
+    @Tag("storage")
+    @Test
+    void dataFileWatcher_shouldSwapInOutsideEditsByUuid(@TempDir Path dir) throws Exception {
+        Path dataPath = dir.resolve("users.json");
+        // Reads do not stat the files for an hour, so it is the watcher that notices the edit.
+        UserRepository repository = openUserRepository(dataPath, "staleCheckMillis", "3600000");
+        List<User> users = sampleUsers(3);
+        users.forEach(repository::addUser);
+        String changeVersion = repository.getChangeVersion();
+
+        // Edit the file the way ops would: one user renamed, one removed, one added, one untouched.
+        List<User> edited = repository.getUsers();
+        edited.get(1).setName("Edited Outside");
+        edited.remove(2);
+        User added = sampleUsers(1).get(0);
+        edited.add(added);
+        new ObjectMapper().writeValue(dataPath.toFile(), edited);
+
+        awaitTrue(() -> repository.existsById(added.getId()), "The watcher should reload the edited file");
+        assertEquals("Edited Outside", repository.getUserById(users.get(1).getId()).getName());
+        assertFalse(repository.existsById(users.get(2).getId()), "A user removed from the file should be gone");
+        assertEquals(users.get(0).getVersion(), repository.findVersion(users.get(0).getId()), "An untouched user should keep its version");
+        assertEquals(users.get(1).getVersion() + 1, repository.findVersion(users.get(1).getId()),
+                "A user edited without a new version should get one");
+        assertNotEquals(changeVersion, repository.getChangeVersion());
+        repository.close();
+    }
+
+    // 5) Shard Tests
+    @Tag("storage")
+    @Test
+    void shards_shouldPartitionByIdAndReshardOffline(@TempDir Path dir) throws Exception {
+        Path dataPath = dir.resolve("users.json");
+        UserRepository repository = openUserRepository(dataPath, "shards", "4");
+        List<User> users = sampleUsers(40);
+        repository.addUsers(users);
+        List<byte[]> before = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            before.add(Files.readAllBytes(dir.resolve("users." + i + ".json")));
+        }
+        User renamed = users.get(0);
+        renamed.setName("Renamed");
+        repository.saveUser(renamed);
+        Map<String, JsonNode> stored = contents(repository.getUsers());
+        repository.close();
+
+        assertFalse(Files.exists(dataPath), "With several shards there should be no unsharded file");
+        int home = Math.floorMod(renamed.getId().hashCode(), 4);
+        for (int i = 0; i < 4; i++) {
+            Path shard = dir.resolve("users." + i + ".json");
+            for (JsonNode user : new ObjectMapper().readTree(shard.toFile())) {
+                assertEquals(i, Math.floorMod(UUID.fromString(user.get("id").asText()).hashCode(), 4), "Each user should be in its hash's shard");
+            }
+            assertEquals(i != home, Arrays.equals(before.get(i), Files.readAllBytes(shard)), "A write should only rewrite its own shard");
+        }
+
+        // Leave a change in the journals too; the tool folds those in as well.
+        repository = openUserRepository(dataPath, "shards", "4", "storageMode", "journal");
+        assertEquals(stored, contents(repository.getUsers()));
+        repository.deleteUserById(users.get(1).getId());
+        stored = contents(repository.getUsers());
+        repository.close();
+
+        ReshardTool.reshard(dataPath.toString(), 4, 2);
+        try (var files = Files.list(dir)) {
+            assertEquals(Set.of("users.0.json", "users.1.json"), files.map(file -> file.getFileName().toString()).collect(Collectors.toSet()),
+                    "Only the new shards should be left");
+        }
+        repository = openUserRepository(dataPath, "shards", "2");
+        assertEquals(stored, contents(repository.getUsers()), "Resharding should keep every user");
+        repository.close();
+    }
+
+    // 6) Compaction Tests
+    @Tag("storage")
+    @Test
+    void compactor_shouldFoldJournalsWhileWritesGoOnAndReportIt(@TempDir Path dir) throws Exception {
+        Path dataPath = dir.resolve("users.json");
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        UserRepository repository = new UserRepository();
+        ReflectionTestUtils.setField(repository, "userDataPath", dataPath.toString());
+        open(repository, meterRegistry, "storageMode", "journal", "journalMaxRecords", "20", "compactionIntervalMillis", "10");
+        List<User> users = sampleUsers(10);
+        repository.addUsers(users);
+        // The same users are renamed over and over while the compactor folds the journal behind the writes.
+        for (int round = 0; round < 20; round++) {
+            for (User user : users) {
+                user.setName("Round " + round);
+                repository.saveUser(user);
+            }
+        }
+        Map<String, JsonNode> stored = contents(repository.getUsers());
+
+        // The duration is recorded last, once a shard's run and reclaimed bytes are counted.
+        awaitTrue(() -> meterRegistry.get("repository.compaction.duration").tag("repository", "user").timer().count() > 0,
+                "Compactions should be published as metrics");
+        assertTrue(meterRegistry.get("repository.compaction.runs").functionCounter().count() > 0);
+        assertTrue(meterRegistry.get("repository.compaction.bytes.reclaimed").functionCounter().count() > 0,
+                "Folding overwritten records should reclaim bytes");
+        repository.close();
+
+        repository = openUserRepository(dataPath, "storageMode", "journal");
+        assertEquals(stored, contents(repository.getUsers()), "No write should be lost to a compaction");
+        assertTrue(repository.getUsers().stream().allMatch(user -> user.getName().equals("Round 19")));
+        repository.close();
+    }
+
+    // 7) H2 Storage Engine Tests
+    @Tag("storage")
+    @Test
+    void h2Engine_shouldImportTheDataFileAndKeepChangesAcrossRestarts(@TempDir Path dir) throws Exception {
+        Path dataPath = dir.resolve("users.json");
+        UserRepository repository = openUserRepository(dataPath);
+        List<User> users = sampleUsers(3);
+        users.forEach(repository::addUser);
+        Map<String, JsonNode> stored = contents(repository.getUsers());
+        repository.close();
+        byte[] dataFile = Files.readAllBytes(dataPath);
+
+        repository = openUserRepository(dataPath, "storageEngine", "h2");
+        assertEquals(stored, contents(repository.getUsers()), "A new table should be filled from the data file");
+        users.get(0).setName("Renamed");
+        repository.saveUser(users.get(0));
+        repository.deleteUserById(users.get(1).getId());
+        repository.addUser(sampleUsers(1).get(0));
+        stored = contents(repository.getUsers());
+        repository.close();
+
+        assertTrue(Files.exists(dir.resolve("users.mv.db")), "The database should sit next to the data file");
+        assertArrayEquals(dataFile, Files.readAllBytes(dataPath), "The h2 engine should leave the data file alone");
+        repository = openUserRepository(dataPath, "storageEngine", "h2");
+        assertEquals(stored, contents(repository.getUsers()), "Changes should be read back from the database, not imported again");
+        repository.clearUsers();
+        repository.close();
+
+        repository = openUserRepository(dataPath, "storageEngine", "h2");
+        assertTrue(repository.getUsers().isEmpty(), "Replacing everything should empty the table");
+        repository.close();
+    }
+
+    // 8) Snapshot Encoding Tests
+    @Tag("storage")
+    @Test
+    void snapshotEncodings_shouldRoundTripAndConvertWithEncodingTool(@TempDir Path dir) throws Exception {
+        for (String encoding : List.of("smile", "cbor")) {
+            Path dataPath = dir.resolve(encoding + "-users.json");
+            UserRepository repository = openUserRepository(dataPath, "encoding", encoding);
+            repository.addUsers(sampleUsers(20));
+            Map<String, JsonNode> stored = contents(repository.getUsers());
+            repository.close();
+            byte[] encoded = Files.readAllBytes(dataPath);
+            assertTrue(encoding.equals("smile") ? new String(encoded, 0, 3, StandardCharsets.US_ASCII).equals(":)\n") : encoded[0] != '[',
+                    "The snapshot should be written as " + encoding);
+
+            // Files are read in whatever encoding they are in.
+            repository = openUserRepository(dataPath, "encoding", "json");
+            assertEquals(stored, contents(repository.getUsers()), encoding + " should round-trip every user");
+            repository.close();
+
+            EncodingTool.main(new String[] {dataPath.toString(), "json"});
+            assertEquals('[', (char) Files.readAllBytes(dataPath)[0]);
+            assertTrue(encoded.length < Files.size(dataPath), encoding + " should be smaller than JSON");
+            EncodingTool.main(new String[] {dataPath.toString(), encoding});
+            assertNotEquals('[', (char) Files.readAllBytes(dataPath)[0], "The file should be converted back to " + encoding);
+
+            repository = openUserRepository(dataPath, "encoding", encoding);
+            assertEquals(stored, contents(repository.getUsers()), "Converted files should keep every user");
+            repository.close();
+        }
+    }
+
+    // 9) Transaction Log Tests
+    private static TransactionLog openTransactionLog(Path logPath, MainRepository<?>... repositories) {
+        TransactionLog log = new TransactionLog(List.of(repositories));
+        ReflectionTestUtils.setField(log, "logPath", logPath.toString());
+        log.recover();
+        return log;
+    }
+
+    @Tag("storage")
+    @Test
+    void transactionLog_whenDirectoryIsMissing_shouldCreateIt(@TempDir Path dir) throws Exception {
+        UserRepository repository = openUserRepository(dir.resolve("users.json"));
+        Path logPath = dir.resolve("log").resolve("transactions.log");
+        TransactionLog log = openTransactionLog(logPath, repository);
+        User user = sampleUsers(1).get(0);
+        log.begin().insert(repository, user).commit();
+        log.close();
+        repository.close();
+
+        assertTrue(Files.exists(logPath), "The log's directory should be created on first use");
+        UserRepository restarted = openUserRepository(dir.resolve("users.json"));
+        assertTrue(restarted.existsById(user.getId()), "The unit should be stored");
+        restarted.close();
+    }
+
+    @Tag("storage")
+    @Test
+    void transactionLog_whenUnitIsStored_shouldDropItsRecordSoADeleteSurvivesRestart(@TempDir Path dir) throws Exception {
+        Path dataPath = dir.resolve("users.json");
+        Path logPath = dir.resolve("transactions.log");
+        UserRepository repository = openUserRepository(dataPath);
+        TransactionLog log = openTransactionLog(logPath, repository);
+        User user = sampleUsers(1).get(0);
+        log.begin().insert(repository, user).commit();
+        repository.deleteById(user.getId());
+        awaitTrue(() -> logPath.toFile().length() == 0, "The record should be dropped once the unit is stored, not with the next unit");
+        log.close();
+        repository.close();
+
+        UserRepository restarted = openUserRepository(dataPath);
+        openTransactionLog(logPath, restarted).close();
+        assertFalse(restarted.existsById(user.getId()), "Replaying the log should not bring back a deleted entity");
+        restarted.close();
+    }
+
+    @Tag("storage")
+    @Test
+    void transactionLog_whenRepositoryWriteFails_shouldKeepTheUnitAndWriteItAgain(@TempDir Path dir) throws Exception {
+        Path dataPath = dir.resolve("users.json");
+        Path logPath = dir.resolve("transactions.log");
+        UserRepository repository = openUserRepository(dataPath);
+        TransactionLog log = openTransactionLog(logPath, repository);
+        Path temp = dir.resolve("users.json.tmp");
+        Files.createDirectory(temp);
+        User kept = sampleUsers(1).get(0);
+        log.begin().insert(repository, kept).commit();
+        // Queued behind the unit's write, so by the time it fails the unit's write has failed too.
+        assertThrows(RuntimeException.class, () -> repository.addUser(sampleUsers(1).get(0)));
+        assertTrue(repository.existsById(kept.getId()), "A committed unit should stay visible while its write fails");
+        assertTrue(Files.size(logPath) > 0, "The unit's record should stay until it is stored");
+
+        Files.delete(temp);
+        log.begin().update(repository, kept.getId(), null, user -> user.setName("Renamed")).commit();
+        awaitTrue(() -> logPath.toFile().length() == 0, "The record should be dropped once the unit is stored again");
+        log.close();
+        repository.close();
+
+        UserRepository restarted = openUserRepository(dataPath);
+        openTransactionLog(logPath, restarted).close();
+        assertEquals("Renamed", restarted.getUserById(kept.getId()).getName(), "Later changes should build on the unit");
+        restarted.close();
+    }
 }
\ No newline at end of file